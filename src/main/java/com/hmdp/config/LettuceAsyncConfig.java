@@ -0,0 +1,108 @@
+package com.hmdp.config;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步秒杀用的lettuce连接
+ * lettuce的连接是线程安全的，所有请求共用一个连接，命令在这个连接上流水线发送，不占用业务线程
+ * 地址和密码复用spring.redis的配置，配置了spring.redis.cluster.nodes时连接redis集群，
+ * 命令按key的slot路由到对应的节点
+ * 开启了命令超时，回复丢了的命令到时间以RedisCommandTimeoutException失败，不会让调用方一直等下去
+ */
+@Configuration
+public class LettuceAsyncConfig {
+
+    // 异步命令的超时时间
+    @Value("${hmdp.seckill.async.command-timeout-ms:1000}")
+    private long commandTimeoutMs;
+
+    // 秒杀回调线程数，lettuce的future完成之后的后续处理在这里执行，不占用lettuce的事件循环
+    @Value("${hmdp.seckill.async.callback-threads:8}")
+    private int callbackThreads;
+
+    @Bean(destroyMethod = "shutdown")
+    public AbstractRedisClient asyncRedisClient(RedisProperties redisProperties) {
+        TimeoutOptions timeoutOptions = TimeoutOptions.enabled(Duration.ofMillis(commandTimeoutMs));
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty()) {
+            List<RedisURI> uris = new ArrayList<>();
+            for (String node : cluster.getNodes()) {
+                int i = node.lastIndexOf(':');
+                uris.add(redisUri(redisProperties, node.substring(0, i), Integer.parseInt(node.substring(i + 1))));
+            }
+            RedisClusterClient client = RedisClusterClient.create(uris);
+            client.setOptions(ClusterClientOptions.builder().timeoutOptions(timeoutOptions).build());
+            return client;
+        }
+        RedisURI uri = redisUri(redisProperties, redisProperties.getHost(), redisProperties.getPort());
+        uri.setDatabase(redisProperties.getDatabase());
+        RedisClient client = RedisClient.create(uri);
+        client.setOptions(ClientOptions.builder().timeoutOptions(timeoutOptions).build());
+        return client;
+    }
+
+    /**
+     * 秒杀回调线程池，异步秒杀路径中需要同步访问redis或者做业务处理的回调都切到这里执行
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService seckillCallbackExecutor() {
+        AtomicInteger index = new AtomicInteger();
+        return Executors.newFixedThreadPool(callbackThreads, r -> {
+            Thread thread = new Thread(r, "seckill-callback-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Bean(destroyMethod = "close")
+    public StatefulConnection<String, String> asyncRedisConnection(AbstractRedisClient asyncRedisClient) {
+        if (asyncRedisClient instanceof RedisClusterClient) {
+            return ((RedisClusterClient) asyncRedisClient).connect();
+        }
+        return ((RedisClient) asyncRedisClient).connect();
+    }
+
+    /**
+     * 单机和集群共用的异步命令，秒杀路径只用到这里面的命令
+     */
+    @Bean
+    public RedisClusterAsyncCommands<String, String> asyncRedisCommands(StatefulConnection<String, String> asyncRedisConnection) {
+        if (asyncRedisConnection instanceof StatefulRedisClusterConnection) {
+            return ((StatefulRedisClusterConnection<String, String>) asyncRedisConnection).async();
+        }
+        return ((StatefulRedisConnection<String, String>) asyncRedisConnection).async();
+    }
+
+    private static RedisURI redisUri(RedisProperties redisProperties, String host, int port) {
+        RedisURI uri = RedisURI.builder()
+                .withHost(host)
+                .withPort(port)
+                .withTimeout(redisProperties.getTimeout() == null ? Duration.ofSeconds(60) : redisProperties.getTimeout())
+                .build();
+        if (redisProperties.getPassword() != null) {
+            uri.setPassword(redisProperties.getPassword());
+        }
+        return uri;
+    }
+}
@@ -1,13 +1,16 @@
 package com.hmdp.config;
 
+import com.hmdp.interceptor.AdminInterceptor;
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 /**
  * Author:CodeCan
@@ -17,6 +20,9 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    // 管理员的用户id，逗号分隔，只有他们能调用管理接口
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -29,6 +35,14 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login"
                 ).order(1);
+        // 管理接口只允许管理员调用
+        registry.addInterceptor(new AdminInterceptor(adminIds))
+                .addPathPatterns(
+                        "/voucher/seckill/preload",
+                        "/voucher/seckill/*/buyers/memory",
+                        "/voucher-order/dlq",
+                        "/voucher-order/dlq/**"
+                ).order(2);
         // 先执行redis刷新的拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
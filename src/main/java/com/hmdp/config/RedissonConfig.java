@@ -2,20 +2,36 @@ package com.hmdp.config;
 
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
+import org.redisson.config.ClusterServersConfig;
 import org.redisson.config.Config;
+import org.redisson.config.SingleServerConfig;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 /**
  * Author:CodeCan
  * Time:2024/8/30
+ * 地址和密码复用spring.redis的配置，配置了spring.redis.cluster.nodes时连接redis集群
  */
 @Configuration
 public class RedissonConfig {
     @Bean
-    public RedissonClient redissonClient(){
+    public RedissonClient redissonClient(RedisProperties redisProperties){
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.110.56:6379").setPassword("747820");
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty()) {
+            ClusterServersConfig clusterConfig = config.useClusterServers();
+            for (String node : cluster.getNodes()) {
+                clusterConfig.addNodeAddress("redis://" + node);
+            }
+            clusterConfig.setPassword(redisProperties.getPassword());
+            return Redisson.create(config);
+        }
+        SingleServerConfig serverConfig = config.useSingleServer()
+                .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                .setDatabase(redisProperties.getDatabase());
+        serverConfig.setPassword(redisProperties.getPassword());
         return Redisson.create(config);
     }
 }
@@ -10,6 +10,7 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -36,6 +37,16 @@ public class ShopController {
         return shopService.queryShopById(id);
     }
 
+    /**
+     * 根据一批id查询商铺信息，用于渲染店铺列表
+     * @param ids 商铺id，逗号隔开，最多100个
+     * @return 存在的商铺，顺序和ids一致
+     */
+    @GetMapping("/batch")
+    public Result queryShopByIds(@RequestParam("ids") List<Long> ids) {
+        return shopService.queryShopByIds(ids);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -43,10 +54,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库和布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
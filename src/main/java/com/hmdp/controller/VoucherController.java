@@ -4,6 +4,8 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillBuyerBitmap;
+import com.hmdp.utils.SeckillPreloader;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -23,6 +25,12 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private SeckillPreloader seckillPreloader;
+
+    @Resource
+    private SeckillBuyerBitmap seckillBuyerBitmap;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -31,6 +39,7 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        voucherService.evictVoucherOfShop(voucher.getShopId());
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +54,26 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 从数据库重建秒杀券在redis中的库存、元数据和已下单用户，只允许管理员调用
+     * @param force true:重建所有未结束的券（还有订单没处理完的券跳过），false:只重建redis中缺失的券
+     * @return 重建的券数量、用户数量、跳过的券以及耗时
+     */
+    @PostMapping("seckill/preload")
+    public Result preloadSeckillVouchers(@RequestParam(value = "force", defaultValue = "false") Boolean force) {
+        return Result.ok(seckillPreloader.preload(force));
+    }
+
+    /**
+     * 查询秒杀券已下单用户位图占用的内存，只允许管理员调用
+     * @param voucherId 优惠券id
+     * @return 分片数、下单用户数、占用的字节数
+     */
+    @GetMapping("seckill/{id}/buyers/memory")
+    public Result queryBuyersMemory(@PathVariable("id") Long voucherId) {
+        return Result.ok(seckillBuyerBitmap.memoryReport(voucherId));
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -2,14 +2,19 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -24,8 +29,15 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "seckill-token", required = false) String token) {
+        // 开启等候室时必须带着入场令牌
+        if (!admitted(voucherId, token)) {
+            return Result.fail("请先排队");
+        }
         // 悲观锁实现一人多单的超卖问题
         // synchronized和Transactional一起用还是会导致超卖问题
         //Result res = Result.ok();
@@ -40,4 +52,94 @@ public class VoucherOrderController {
         // 乐观锁解决一人多单的超卖问题
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 异步秒杀，等待redis的时候不占用tomcat线程
+     * 用户在这里从UserHolder中取出来显式传下去，后面的回调不在请求线程上执行
+     * @param voucherId 优惠券id
+     * @return 订单id
+     */
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId,
+                                                        @RequestHeader(value = "seckill-token", required = false) String token) {
+        UserDTO user = UserHolder.getUser();
+        if (!admitted(voucherId, token)) {
+            return CompletableFuture.completedFuture(Result.fail("请先排队"));
+        }
+        return voucherOrderService.seckillVoucherAsync(voucherId, user.getId());
+    }
+
+    /**
+     * 进入秒杀等候室，领取排队号
+     * @param voucherId 优惠券id
+     * @return 排队号和排队凭证
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result enqueue(@PathVariable("id") Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            return Result.fail("没有开启排队");
+        }
+        return Result.ok(seckillWaitingRoom.enqueue(voucherId, UserHolder.getUser().getId()));
+    }
+
+    /**
+     * 查询排队进度，轮到自己时返回入场令牌，秒杀时放在请求头seckill-token中
+     * @param voucherId 优惠券id
+     * @param ticket 排队凭证
+     * @return 前面还有多少人，以及入场令牌
+     */
+    @GetMapping("seckill/{id}/ticket")
+    public Result pollTicket(@PathVariable("id") Long voucherId, @RequestParam("ticket") String ticket) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            return Result.fail("没有开启排队");
+        }
+        Map<String, Object> progress = seckillWaitingRoom.poll(voucherId, UserHolder.getUser().getId(), ticket);
+        return progress == null ? Result.fail("排队凭证无效") : Result.ok(progress);
+    }
+
+    private boolean admitted(Long voucherId, String token) {
+        return !seckillWaitingRoom.isEnabled()
+                || seckillWaitingRoom.verifyToken(voucherId, UserHolder.getUser().getId(), token);
+    }
+
+    /**
+     * 长轮询查询秒杀订单的处理状态
+     * 订单还在排队就挂起请求，直到订单写入数据库或者失败，最多等待timeout毫秒
+     * @param id 订单id
+     * @return queued、persisted或failed
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long id,
+                                                   @RequestParam(value = "timeout", defaultValue = "10000") Long timeout) {
+        return voucherOrderService.awaitOrderStatus(id, timeout);
+    }
+
+    /**
+     * 通过SSE推送秒杀订单的处理状态，先推送当前状态，变成最终状态后再推送一次
+     * @param id 订单id
+     */
+    @GetMapping(value = "{id}/status/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamOrderStatus(@PathVariable("id") Long id) {
+        return voucherOrderService.subscribeOrderStatus(id);
+    }
+
+    /**
+     * 查询死信队列中处理失败的订单消息，只允许管理员调用
+     * @param count 最多返回的条数
+     * @return 死信消息，包含原消息内容、投递次数和错误信息
+     */
+    @GetMapping("dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 把死信消息重新投递到订单队列，只允许管理员调用
+     * @param id 死信消息id
+     * @return 重新投递后的消息id
+     */
+    @PostMapping("dlq/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
 }
@@ -0,0 +1,47 @@
+package com.hmdp.interceptor;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.util.Set;
+
+/**
+ * 管理接口的拦截器，只放行配置在 hmdp.admin.user-ids 中的用户
+ * 没有配置管理员时所有人都不放行
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminIds;
+
+    public AdminInterceptor(Set<Long> adminIds) {
+        this.adminIds = adminIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 从threadLocal中取出用户，管理接口可能在登录拦截器排除的路径下，这里也要判断是否登录
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            reject(response, HttpServletResponse.SC_UNAUTHORIZED, "您的账号权限已经过期，请重新登录");
+            return false;
+        }
+        if (!adminIds.contains(user.getId())) {
+            reject(response, HttpServletResponse.SC_FORBIDDEN, "没有权限");
+            return false;
+        }
+        //放行
+        return true;
+    }
+
+    private void reject(HttpServletResponse response, int status, String message) throws Exception {
+        response.setStatus(status);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("text/html; charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(message);
+    }
+}
@@ -5,7 +5,7 @@ import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -20,7 +20,7 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
  * Time:2024/8/14
  * 用来刷新用户在redis中存储的时间，不拦截
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
@@ -56,4 +56,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 防止内存泄露
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求（DeferredResult、SseEmitter、CompletableFuture）第一次分派结束时不会调用afterCompletion，
+        // 这里不清理的话，这个tomcat线程处理的下一个请求会带着上一个用户通过登录拦截器
+        UserHolder.removeUser();
+    }
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,7 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    // 多行insert ignore，一条sql插入一批订单，主键或者(user_id, voucher_id)重复的订单会被忽略
+    // 返回实际插入的行数
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
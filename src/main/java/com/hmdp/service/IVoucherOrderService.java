@@ -3,6 +3,12 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -16,5 +22,17 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId);
+
+    Set<Long> createVoucherOrder(VoucherOrder voucherOrder);
+
+    Set<Long> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    Result queryDeadLetters(Integer count);
+
+    Result replayDeadLetter(String id);
+
+    DeferredResult<Result> awaitOrderStatus(Long orderId, Long timeout);
+
+    SseEmitter subscribeOrderStatus(Long orderId);
 }
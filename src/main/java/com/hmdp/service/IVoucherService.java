@@ -1,9 +1,12 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,12 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher, Integer status);
+
+    void saveSeckillMeta2Redis(SeckillVoucher seckillVoucher, Integer status);
+
+    List<Voucher> cacheVoucherOfShop(Long shopId);
+
+    void evictVoucherOfShop(Long shopId);
 }
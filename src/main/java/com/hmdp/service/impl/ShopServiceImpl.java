@@ -10,17 +10,26 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.EntityBloomFilter;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -41,6 +50,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private CacheClient cacheClient;
 
+    @Autowired
+    private EntityBloomFilter entityBloomFilter;
+
+    // 注册店铺id的布隆过滤器，启动完成之后从tb_shop分页读取所有id构建
+    @PostConstruct
+    private void registerBloomFilter() {
+        entityBloomFilter.register("shop", CACHE_SHOP_KEY, lastId -> query().select("id")
+                .gt("id", lastId).orderByAsc("id").last("limit " + EntityBloomFilter.BUILD_PAGE_SIZE)
+                .list().stream().map(Shop::getId).collect(Collectors.toList()));
+    }
+
     // 根据店铺id查询店铺
     @Override
     public Result queryShopById(Long id) {
@@ -66,6 +86,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    // 批量查询店铺，一次MGET，未命中的一次查询数据库，按ids的顺序返回存在的店铺
+    @Override
+    public Result queryShopByIds(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        if (ids.size() > SystemConstants.MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + SystemConstants.MAX_BATCH_SIZE + "个店铺");
+        }
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids.stream().distinct().collect(Collectors.toList()), Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(shops.stream().filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
     // 利用逻辑过期解决缓存击穿问题
 /*    public Shop queryWithLogicalExpire(Long id) {
         // 先走缓存
@@ -227,6 +262,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }*/
 
+    // 新增商铺
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 写入布隆过滤器，否则新店铺在下次同步之前会被当作不存在
+        entityBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     // 更新商铺
     //先更新数据库再删除缓存
     @Override
@@ -238,8 +284,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         updateById(shop);
         // 查询redis中是否存在缓存
         String key = CACHE_SHOP_KEY + shop.getId();
-        // 删除缓存
-        stringRedisTemplate.delete(key);
+        // 删除缓存，并通知所有实例删除本地缓存
+        cacheClient.evict(key);
         return Result.ok();
     }
 }
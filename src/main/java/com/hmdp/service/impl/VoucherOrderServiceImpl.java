@@ -1,35 +1,49 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.AsyncRedisSupport;
+import com.hmdp.utils.SeckillActiveVouchers;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillCoalescer;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderStatusNotifier;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockLease;
 import com.hmdp.utils.UserHolder;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_STREAM;
 
 /**
  * <p>
@@ -51,117 +65,43 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOutCache seckillSoldOutCache;
 
-    public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillActiveVouchers seckillActiveVouchers;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SeckillOrderStatusNotifier orderStatusNotifier;
 
-    // 阻塞队列
-    // 可以用redis中的stream来实现消息队列
-    // private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    @Resource
+    private SeckillAdmission seckillAdmission;
 
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 异步秒杀用的lettuce命令，单机和集群通用
+    @Resource
+    private RedisClusterAsyncCommands<String, String> asyncRedisCommands;
 
-    private IVoucherOrderService proxy;
+    // 同一张券并发的秒杀请求合并成一次脚本调用
+    @Resource
+    private SeckillCoalescer seckillCoalescer;
 
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
+    @Resource
+    private SeckillStockLease seckillStockLease;
 
-    private class VoucherOrderHandler implements Runnable {
-        private static final String queueName = "stream.orders";
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 获取消息队列中的订单消息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(Consumer.from("g1", "c1"), StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)), StreamOffset.create(queueName, ReadOffset.lastConsumed()));
-                    // 判断订单信息是否为空
-                    if (records == null || records.isEmpty()) {
-                        // 为空则进行下一次循环到收到消息
-                        continue;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = records.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    // 转化成对象
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    //处理异常消息
-                    handlePendingList();
-                }
-            }
-        }
+    // 秒杀回调线程池，lettuce的future完成之后的处理都在这里执行
+    @Resource
+    private ExecutorService seckillCallbackExecutor;
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    // pending-list中的消息都是没有ack的消息
-                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(Consumer.from("g1", "c1"), StreamReadOptions.empty().count(1), StreamOffset.create(queueName, ReadOffset.from("0")));
-                    // 判断订单信息是否为空
-                    if (records == null || records.isEmpty()) {
-                        // 为空则代表pending-list中没有消息
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = records.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    // 转化成对象
-                    VoucherOrder voucherOrder = new VoucherOrder();
-                    BeanUtil.fillBeanWithMap(value, voucherOrder, true);
-                    // 创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pendding-list订单异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-            }
-        }
-    }
+    // 一次秒杀请求最多等待的时间，redis的回复丢了也不会一直挂着
+    @Value("${hmdp.seckill.async.request-timeout-ms:3000}")
+    private long seckillTimeoutMs;
 
-    // 处理创建订单的业务
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 判断是否获取到锁
-        // 直接用redisson分布式锁不用自己实现的分布式锁
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 尝试获取锁
-        boolean success = lock.tryLock();
-        if (!success) {
-            // 没有获取到则直接返回
-            log.error("一人只允许抢一张券");
-            return;
-        }
-        // 由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-        try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            lock.unlock();
-        }
-    }
+    // 阻塞队列
+    // 可以用redis中的stream来实现消息队列
+    // private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
+    // 订单消息由VoucherOrderConsumerPool异步消费，写入数据库
 
     // 线程池需要处理的任务
     //private class VoucherOrderHandler implements Runnable {
@@ -210,27 +150,102 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         // 用户id
         Long userId = UserHolder.getUser().getId();
-        // 订单id
-        long orderId = redisIdWorker.nextId("order");
-        // 使用lua脚本来解决秒杀问题
-        // 1.获取lua脚本的结果
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
-        int r = result.intValue();
-        // 2.如果返回值为1则说明库存不足
+        // 和异步秒杀走同一条路径，超时和异常在里面已经转换成失败结果，最多等待request-timeout-ms
+        return seckillVoucherAsync(voucherId, userId).join();
+    }
+
+    // 异步秒杀，不占用tomcat线程等待redis
+    // 用户由调用方显式传入，回调不在请求线程上执行，拿不到UserHolder
+    // lettuce的future在lettuce的事件循环上完成，后续处理都用 thenXxxAsync 切到秒杀回调线程池，
+    // 回调里同步访问redis（比如发布售罄通知）不会卡住事件循环
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId) {
+        // 本地已经标记售罄，直接返回，不访问redis
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
+        }
+        // 券不存在或者已经结束，直接返回，不在本地为这个券id创建任何状态
+        if (!seckillActiveVouchers.isActive(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("秒杀券不存在或者已经结束"));
+        }
+        // 准入控制，这一秒的名额发完了就在本地拒绝，令牌用完时异步去redis租用
+        CompletableFuture<Result> result = seckillAdmission.tryAcquireAsync(voucherId).thenComposeAsync(admitted -> {
+            if (!admitted) {
+                return CompletableFuture.completedFuture(Result.fail("当前抢购人数太多，请稍后再试"));
+            }
+            // 开启库存租约时先在本地扣减库存
+            return takeLeasedStock(voucherId).thenComposeAsync(leaseFail -> {
+                if (leaseFail != null) {
+                    return CompletableFuture.completedFuture(leaseFail);
+                }
+                // 订单id，售罄之后的请求在上面就返回了，不会再消耗订单id
+                // 使用lua脚本来解决秒杀问题，并发的请求会合并到一次脚本调用中
+                return redisIdWorker.nextIdAsync("order", asyncRedisCommands)
+                        .thenComposeAsync(orderId -> executeSeckill(voucherId, userId, orderId), seckillCallbackExecutor);
+            }, seckillCallbackExecutor);
+        }, seckillCallbackExecutor);
+        // 超时或者redis异常时返回失败，不让请求一直挂着
+        return AsyncRedisSupport.withTimeout(result, seckillTimeoutMs).exceptionally(e -> {
+            log.error("秒杀请求失败，voucherId = {}", voucherId, e);
+            return Result.fail("系统繁忙，请稍后再试");
+        });
+    }
+
+    // 库存租约模式下在本地扣减一个库存，扣不到就返回失败结果，扣到了返回null
+    private CompletableFuture<Result> takeLeasedStock(Long voucherId) {
+        if (!seckillStockLease.isEnabled()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return seckillStockLease.tryTakeAsync(voucherId).thenApplyAsync(taken -> {
+            if (taken == SeckillStockLease.SOLD_OUT) {
+                seckillSoldOutCache.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
+            if (taken == SeckillStockLease.EMPTY) {
+                return Result.fail("库存不足，请稍后再试");
+            }
+            return null;
+        }, seckillCallbackExecutor);
+    }
+
+    // 执行秒杀脚本，库存租约模式下根据结果结算本地扣减的库存
+    private CompletableFuture<Result> executeSeckill(Long voucherId, Long userId, long orderId) {
+        CompletableFuture<Long> future = seckillCoalescer.submit(voucherId, userId, orderId);
+        if (seckillStockLease.isEnabled()) {
+            future = future.whenCompleteAsync((r, e) -> seckillStockLease.settle(voucherId, e == null ? r.intValue() : -1),
+                    seckillCallbackExecutor);
+        }
+        return future.thenApplyAsync(r -> seckillResult(r.intValue(), voucherId, orderId), seckillCallbackExecutor);
+    }
+
+    // 把秒杀脚本的返回值转换成结果
+    private Result seckillResult(int r, Long voucherId, long orderId) {
+        // 1.如果返回值为1则说明库存不足，标记售罄并通知其他实例
         if (r == 1) {
+            seckillSoldOutCache.markSoldOut(voucherId);
             return Result.fail("库存不足");
         }
-        // 3.返回值为2则说明用户已经抢购过
+        // 2.返回值为2则说明用户已经抢购过
         if (r == 2) {
             return Result.fail("您已经抢购过这张优惠券了，一人只能抢一张");
         }
-        // 4.返回值为0则说明用户抢购成功
-
-        // 5.获取代理对象，因为处理订单到数据库的业务不是主线程而是其他的线程
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        // 6.返回订单id
+        // 3.返回值为3、4、5说明优惠券不存在或者不在秒杀时间内
+        if (r == 3) {
+            return Result.fail("优惠券不存在");
+        }
+        if (r == 4) {
+            return Result.fail("秒杀时间还没开始");
+        }
+        if (r == 5) {
+            return Result.fail("秒杀时间已经结束");
+        }
+        // 返回值为6说明本实例的库存租约已经被收回，本地剩下的库存作废
+        if (r == SeckillStockLease.REVOKED) {
+            return Result.fail("库存不足，请稍后再试");
+        }
+        // 4.返回值为0则说明用户抢购成功，订单状态为queued，客户端通过 /voucher-order/{id}/status 等待持久化结果
+        // 5.返回订单id
         return Result.ok(orderId);
-
     }
 
     //// 秒杀优惠卷
@@ -287,14 +302,18 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //    }*/
     //}
 
+    // 订单持久化不加分布式锁，一人一单由(user_id, voucher_id)唯一索引保证
+    // 订单id是主键，同一条消息重复投递时insert ignore不会插入，也不会重复扣库存
+    // 返回数据库中已经有的订单id：这次插入的，或者之前重复投递时已经插入的；被拦下来的返回空
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单，数据库里面user_id和voucher_id组合只能有一条数据
-        Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
-            log.error("一人只允许抢一张券");
-            return;
+    public Set<Long> createVoucherOrder(VoucherOrder voucherOrder) {
+        // 新建订单，数据库里面user_id和voucher_id组合只能有一条数据
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            Set<Long> existing = checkIgnored(Collections.singletonList(voucherOrder));
+            log.error("一人只允许抢一张券，或者订单已经创建过了，orderId = {}", voucherOrder.getId());
+            return existing;
         }
 
         // 开始扣减库存
@@ -302,9 +321,119 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         boolean success = seckillVoucherService.update().setSql("stock = stock - 1").eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0).update();
         if (!success) {
             log.error("优惠券库存不足");
-            return;
+            // 库存不足，回滚刚插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Collections.emptySet();
+        }
+        return Collections.singleton(voucherOrder.getId());
+    }
+
+    // 批量创建订单，同一张券的订单一次多行insert ignore，按实际插入的行数一次扣减库存
+    // 一次调用是一个事务，消费者按券分组分别调用，一张券扣减失败不会回滚其他券的订单
+    // 返回数据库中已经有的订单id，和createVoucherOrder一样
+    @Override
+    @Transactional
+    public Set<Long> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        Set<Long> persisted = new HashSet<>(voucherOrders.size() * 2);
+        // 按优惠券分组
+        Map<Long, List<VoucherOrder>> ordersByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            // 重复下单和重复投递的订单会被唯一索引和主键忽略掉
+            int k = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (k < entry.getValue().size()) {
+                // 有被忽略的，这一组里哪些订单在数据库中要查一下
+                persisted.addAll(checkIgnored(entry.getValue()));
+            } else {
+                entry.getValue().forEach(voucherOrder -> persisted.add(voucherOrder.getId()));
+            }
+            if (k == 0) {
+                continue;
+            }
+            // 乐观锁一次扣减k个库存
+            boolean success = seckillVoucherService.update().setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k).update();
+            if (!success) {
+                // 库存不够整批扣减，整批回滚，消息留在pending-list中逐条重试，能下几单下几单
+                throw new IllegalStateException("优惠券库存不足，批量扣减失败，voucherId = " + voucherId);
+            }
         }
-        // 新建订单
-        save(voucherOrder);
+        return persisted;
+    }
+
+    /**
+     * 检查insert ignore忽略掉的订单，只允许两种情况：
+     * 1.同一条消息重复投递，数据库里同一个id的订单用户和券都一样
+     * 2.用户已经买过这张券，被(user_id, voucher_id)唯一索引拦下来，数据库里没有这个id
+     * 数据库里有这个id但是用户或者券不一样，说明订单id重复了（比如切换了发号模式），
+     * 直接忽略的话这一单就丢了，所以抛异常回滚，消息重试几次之后进入死信队列
+     * @return 数据库中已经有的订单id
+     */
+    private Set<Long> checkIgnored(List<VoucherOrder> voucherOrders) {
+        Map<Long, VoucherOrder> existing = query().select("id", "user_id", "voucher_id")
+                .in("id", voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList())).list()
+                .stream().collect(Collectors.toMap(VoucherOrder::getId, o -> o));
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder old = existing.get(voucherOrder.getId());
+            if (old != null && (!old.getUserId().equals(voucherOrder.getUserId())
+                    || !old.getVoucherId().equals(voucherOrder.getVoucherId()))) {
+                throw new IllegalStateException("订单id重复，orderId = " + voucherOrder.getId()
+                        + "，已存在的订单属于userId = " + old.getUserId() + ", voucherId = " + old.getVoucherId());
+            }
+        }
+        return existing.keySet();
+    }
+
+    // 查询死信队列中的订单消息
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        // XRANGE stream.orders.dlq - + COUNT count
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ_STREAM, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<String, Object>> deadLetters = new ArrayList<>();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<String, Object> deadLetter = new LinkedHashMap<>();
+                deadLetter.put("id", record.getId().getValue());
+                record.getValue().forEach((k, v) -> deadLetter.put(k.toString(), v));
+                deadLetters.add(deadLetter);
+            }
+        }
+        return Result.ok(deadLetters);
+    }
+
+    // 把死信队列中的消息重新投递到订单队列，重新开始计算投递次数
+    @Override
+    public Result replayDeadLetter(String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ_STREAM, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信消息不存在");
+        }
+        Map<Object, Object> value = records.get(0).getValue();
+        Map<String, String> order = new HashMap<>();
+        order.put("voucherId", value.get("voucherId").toString());
+        order.put("userId", value.get("userId").toString());
+        order.put("id", value.get("id").toString());
+        // 订单重新回到排队状态，再XADD stream.orders:{voucherId} * voucherId v userId u id i
+        orderStatusNotifier.requeue(Long.valueOf(order.get("id")), Long.valueOf(order.get("userId")));
+        RecordId recordId = stringRedisTemplate.opsForStream()
+                .add(SeckillKeys.orderStream(Long.valueOf(order.get("voucherId"))), order);
+        // XDEL stream.orders.dlq id
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ_STREAM, id);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
+
+    // 长轮询等待订单的处理结果，只能查询自己的订单
+    @Override
+    public DeferredResult<Result> awaitOrderStatus(Long orderId, Long timeout) {
+        return orderStatusNotifier.await(orderId, UserHolder.getUser().getId(), timeout);
+    }
+
+    // 通过SSE推送订单的处理结果，只能查询自己的订单
+    @Override
+    public SseEmitter subscribeOrderStatus(Long orderId) {
+        return orderStatusNotifier.subscribe(orderId, UserHolder.getUser().getId(), SeckillOrderStatusNotifier.MAX_WAIT_MS);
     }
 }
@@ -1,5 +1,7 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +9,23 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.VoucherOrderConsumerPool;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -33,14 +44,36 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 先查缓存，秒杀开始前调度器会预热
+        String json = stringRedisTemplate.opsForValue().get(CACHE_VOUCHER_LIST_KEY + shopId);
+        if (StrUtil.isNotBlank(json)) {
+            return Result.ok(JSONUtil.toList(json, Voucher.class));
+        }
+        // 查询优惠券信息并写入缓存
+        List<Voucher> vouchers = cacheVoucherOfShop(shopId);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    // 从数据库查询店铺的优惠券列表写入缓存，列表里的库存只用于展示，下单以redis中的库存为准
+    @Override
+    public List<Voucher> cacheVoucherOfShop(Long shopId) {
+        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        stringRedisTemplate.opsForValue().set(CACHE_VOUCHER_LIST_KEY + shopId, JSONUtil.toJsonStr(vouchers),
+                CACHE_VOUCHER_LIST_TTL, TimeUnit.MINUTES);
+        return vouchers;
+    }
+
+    @Override
+    public void evictVoucherOfShop(Long shopId) {
+        stringRedisTemplate.delete(CACHE_VOUCHER_LIST_KEY + shopId);
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -54,6 +87,43 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         // 保存秒杀信息到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        saveSeckillVoucher2Redis(seckillVoucher, voucher.getStatus() == null ? 1 : voucher.getStatus());
+        // 店铺的优惠券列表变了
+        evictVoucherOfShop(voucher.getShopId());
+    }
+
+    // 把秒杀券的元数据和库存写入redis，秒杀的校验全部在lua脚本里完成，不用查数据库
+    @Override
+    public void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher, Integer status) {
+        // 先写库存再写元数据，元数据存在而库存还没写入时秒杀脚本会当成售罄
+        saveSeckillStock(seckillVoucher.getVoucherId(), seckillVoucher.getStock());
+        saveSeckillMeta2Redis(seckillVoucher, status);
+    }
+
+    // 只写入元数据并登记订单stream分区，redis中已有的库存保持不变
+    @Override
+    public void saveSeckillMeta2Redis(SeckillVoucher seckillVoucher, Integer status) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Map<String, String> meta = new HashMap<>(8);
+        meta.put("stock", seckillVoucher.getStock().toString());
+        meta.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        meta.put("status", status.toString());
+        stringRedisTemplate.opsForHash().putAll(SeckillKeys.meta(voucherId), meta);
+        // 这张券的订单stream登记为一个分区，先创建好消费者组 XGROUP CREATE stream.orders:{voucherId} g1 0 MKSTREAM
+        stringRedisTemplate.execute(VoucherOrderConsumerPool.GROUP_CREATE_SCRIPT,
+                Collections.singletonList(SeckillKeys.orderStream(voucherId)), SECKILL_ORDER_GROUP);
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_STREAM_INDEX_KEY, voucherId.toString());
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // 把库存写入redis，清掉售罄标记
+    private void saveSeckillStock(Long voucherId, int stock) {
+        stringRedisTemplate.delete(SeckillKeys.soldOut(voucherId));
+        seckillSoldOutCache.clear(voucherId);
+        stringRedisTemplate.opsForValue().set(SeckillKeys.stock(voucherId), String.valueOf(stock));
     }
 }
@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步秒杀路径用到的工具方法
+ * lettuce的future在lettuce的事件循环线程上完成，回调里面不能调用StringRedisTemplate这类同步的命令，
+ * 否则会卡住事件循环，所有连接上的回复都处理不了；需要同步操作的回调用 thenXxxAsync 切到秒杀回调线程池
+ */
+public class AsyncRedisSupport {
+
+    // 超时计时线程，只负责让future超时失败，不执行业务逻辑
+    private static final ScheduledExecutorService TIMEOUT_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private AsyncRedisSupport() {
+    }
+
+    /**
+     * 用EVALSHA执行脚本，redis中还没有缓存这个脚本时用EVAL执行一次
+     */
+    public static <T> CompletableFuture<T> eval(RedisClusterAsyncCommands<String, String> commands, DefaultRedisScript<?> script,
+                                                ScriptOutputType outputType, String[] keys, String... args) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        commands.<T>evalsha(script.getSha1(), outputType, keys, args).whenComplete((r, e) -> {
+            if (e != null && e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT")) {
+                commands.<T>eval(script.getScriptAsString(), outputType, keys, args).whenComplete((r2, e2) -> {
+                    if (e2 != null) {
+                        result.completeExceptionally(e2);
+                    } else {
+                        result.complete(r2);
+                    }
+                });
+                return;
+            }
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(r);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 超过timeoutMs还没有完成就以TimeoutException失败，java8的CompletableFuture没有orTimeout
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutMs) {
+        if (future.isDone()) {
+            return future;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMEOUT_EXECUTOR.schedule(
+                () -> result.completeExceptionally(new TimeoutException("秒杀请求超时：" + timeoutMs + "ms")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((r, e) -> {
+            timer.cancel(false);
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(r);
+            }
+        });
+        return result;
+    }
+}
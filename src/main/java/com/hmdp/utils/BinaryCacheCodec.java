@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码器，用于Shop这样的实体类
+ * 按字段的声明顺序依次写入字段值，不写字段名，null的字段只占空值位图中的1个bit
+ * 格式：4字节类结构的hash + 空值位图 + 每个非null字段的值
+ * 类的字段变了hash就不一样，旧的缓存解码返回null，当作缓存未命中重新从数据库加载
+ * 基本类型的包装类、String、LocalDateTime、BigDecimal直接编码，其他类型的字段按json字符串编码
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte ID = 2;
+
+    // 每个类的字段列表
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    private static class Schema {
+        final Field[] fields;
+        final int hash;
+        final Constructor<?> constructor;
+
+        Schema(Field[] fields, int hash, Constructor<?> constructor) {
+            this.fields = fields;
+            this.hash = hash;
+            this.constructor = constructor;
+        }
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schema(value.getClass());
+        Field[] fields = schema.fields;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(schema.hash);
+            Object[] values = new Object[fields.length];
+            byte[] nulls = new byte[(fields.length + 7) >> 3];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].get(value);
+                if (values[i] == null) {
+                    nulls[i >> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+            out.write(nulls);
+            for (int i = 0; i < fields.length; i++) {
+                if (values[i] != null) {
+                    writeValue(out, values[i]);
+                }
+            }
+        } catch (IOException | IllegalAccessException e) {
+            throw new IllegalStateException("编码缓存失败：" + value.getClass().getName(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] data, int offset, int length, Class<R> type) {
+        Schema schema = schema(type);
+        Field[] fields = schema.fields;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            if (in.readInt() != schema.hash) {
+                // 类的字段变了，旧的缓存不能用
+                return null;
+            }
+            byte[] nulls = new byte[(fields.length + 7) >> 3];
+            in.readFully(nulls);
+            Object value = schema.constructor.newInstance();
+            for (int i = 0; i < fields.length; i++) {
+                if ((nulls[i >> 3] & (1 << (i & 7))) == 0) {
+                    fields[i].set(value, readValue(in, fields[i].getType()));
+                }
+            }
+            return type.cast(value);
+        } catch (ReflectiveOperationException | IOException e) {
+            throw new IllegalStateException("解码缓存失败：" + type.getName(), e);
+        }
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, BinaryCacheCodec::buildSchema);
+    }
+
+    // 包括父类的所有非static、非transient字段，按声明顺序
+    private static Schema buildSchema(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        StringBuilder signature = new StringBuilder(type.getName());
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+                signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+        }
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return new Schema(fields.toArray(new Field[0]), signature.toString().hashCode(), constructor);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("缓存的类型必须有无参构造方法：" + type.getName(), e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Long) {
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof LocalDateTime) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(time.getNano());
+        } else if (value instanceof BigDecimal) {
+            writeString(out, value.toString());
+        } else {
+            writeString(out, JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readValue(DataInputStream in, Class<?> type) throws IOException {
+        if (type == Long.class || type == long.class) {
+            return in.readLong();
+        } else if (type == Integer.class || type == int.class) {
+            return in.readInt();
+        } else if (type == Double.class || type == double.class) {
+            return in.readDouble();
+        } else if (type == Float.class || type == float.class) {
+            return in.readFloat();
+        } else if (type == Short.class || type == short.class) {
+            return in.readShort();
+        } else if (type == Byte.class || type == byte.class) {
+            return in.readByte();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == String.class) {
+            return readString(in);
+        } else if (type == LocalDateTime.class) {
+            long seconds = in.readLong();
+            return LocalDateTime.ofEpochSecond(seconds, in.readInt(), ZoneOffset.UTC);
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(readString(in));
+        }
+        return JSONUtil.toBean(readString(in), type);
+    }
+
+    // 变长的长度 + UTF-8字节，writeUTF最长只能写64KB
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            out.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.writeByte(length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,18 +1,39 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -20,29 +41,153 @@ import static com.hmdp.utils.RedisConstants.*;
  * Author:CodeCan
  * Time:2024/8/18
  * 封装Redis缓存工具类
+ * 可选的本地一级缓存（L1）：redis前面放一个有容量上限和过期时间的进程内LRU缓存，热点数据直接从堆上返回，
+ * 不用每次都GET一次redis再解析两次json
+ * 一致性：修改数据的一方调用evict删除redis中的缓存，并在 cache:invalidate 频道上广播key，
+ * 所有实例（包括自己）收到后删除本地的缓存；消息丢了最多在L1的过期时间内读到旧数据
+ * 注意：L1中的对象是所有请求共享的，调用方不能修改返回的对象
+ * 缓存值的编码见CacheEnvelope，编解码器按hmdp.cache.codec选择，默认是紧凑的二进制格式，
+ * 逻辑过期时间在定长的头部，升级前写入的json格式也能读
  */
+@Slf4j
 @Component
 public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final List<CacheCodec> cacheCodecs;
+
+    private final EntityBloomFilter entityBloomFilter;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                       List<CacheCodec> cacheCodecs, EntityBloomFilter entityBloomFilter) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.cacheCodecs = cacheCodecs;
+        this.entityBloomFilter = entityBloomFilter;
     }
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    // 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
+    // L1中缓存空值的占位对象，对应redis中的空字符串
+    private static final Object NULL_VALUE = new Object();
+
+    // 没拿到互斥锁时多久再读一次redis
+    private static final long MUTEX_RETRY_MS = 50;
+
+    // 正在从数据库加载的key，同一个key的并发请求共用一个future
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 本实例正在重建的逻辑过期key，重建期间其他请求直接返回旧数据，不用再去抢锁
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    @Value("${hmdp.cache.l1.enabled:false}")
+    private boolean l1Enabled;
+
+    // L1最多缓存的key数量，超过之后淘汰最久没有访问的
+    @Value("${hmdp.cache.l1.capacity:10000}")
+    private int l1Capacity;
+
+    // L1中每个key最多缓存多久，也是广播丢失时读到旧数据的最长时间
+    @Value("${hmdp.cache.l1.ttl-ms:5000}")
+    private long l1TtlMs;
+
+    // 写入缓存用的编解码器：binary、json
+    @Value("${hmdp.cache.codec:binary}")
+    private String codecName;
+
+    private CacheCodec codec;
+
+    // 按id索引的所有编解码器，读取时按缓存值头部的id选择
+    private final CacheCodec[] codecsById = new CacheCodec[256];
+
+    private LRUCache<String, Object> l1;
+
+    // 每收到一次失效通知加1，读redis之前记下来，写入L1之前没有变化才写入，
+    // 防止读到旧数据之后失效通知先到，旧数据再被写进L1
+    private final AtomicLong l1Generation = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        for (CacheCodec c : cacheCodecs) {
+            codecsById[c.id() & 0xFF] = c;
+            if (c.name().equals(codecName)) {
+                codec = c;
+            }
+        }
+        if (codec == null) {
+            throw new IllegalStateException("没有这个缓存编解码器：" + codecName);
+        }
+        if (!l1Enabled) {
+            return;
+        }
+        l1 = CacheUtil.newLRUCache(l1Capacity, l1TtlMs);
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            l1Generation.incrementAndGet();
+            l1.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    // 将任意Java对象编码后存储在string类型的key中，并且可以设置TTL过期时间
+    // 头部的逻辑过期时间和TTL一致，同一个key用逻辑过期的方式读取时也认为它是有效的
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        long millis = unit.toMillis(time);
+        byte[] data = CacheEnvelope.wrap(codec, value, System.currentTimeMillis() + millis);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.pSetEx(bytes(key), millis, data));
+        publishInvalidate(key);
     }
 
-    // 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+    // 将任意Java对象编码后存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        byte[] data = CacheEnvelope.wrap(codec, value, System.currentTimeMillis() + unit.toMillis(time));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(bytes(key), data));
+        publishInvalidate(key);
+    }
+
+    // 缓存空值，防止缓存穿透
+    private void setNull(String key) {
+        stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        publishInvalidate(key);
+    }
+
+    /**
+     * 删除缓存，并通知所有实例删除本地的缓存
+     * 修改数据的地方（比如更新店铺）在更新数据库之后调用
+     */
+    public void evict(String key) {
+        stringRedisTemplate.delete(key);
+        if (l1 != null) {
+            l1Generation.incrementAndGet();
+            l1.remove(key);
+        }
+        publishInvalidate(key);
+    }
+
+    private void publishInvalidate(String key) {
+        if (l1 == null) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            // redis中的数据已经更新了，广播失败其他实例最多在L1的过期时间内读到旧数据
+            log.error("广播缓存失效失败，key = {}", key, e);
+        }
+    }
+
+    // 从L1中读取，返回null表示L1中没有，NULL_VALUE表示缓存的是空值
+    private Object getL1(String key) {
+        return l1 == null ? null : l1.get(key, false);
+    }
+
+    // 写入L1，generation是读redis之前记下的失效次数，期间有失效通知就不写入
+    private void putL1(String key, Object value, long generation, long ttlMs) {
+        if (l1 == null || ttlMs <= 0 || l1Generation.get() != generation) {
+            return;
+        }
+        l1.put(key, value, Math.min(ttlMs, l1TtlMs));
     }
 
     // 根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
@@ -60,12 +205,26 @@ public class CacheClient {
      */
     public <R, T> R queryWithPassThrough(
             String keyPrefix, T id, Class<R> type, Function<T, R> dbFallBack, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的id直接返回，不访问redis和数据库
+        if (!entityBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         // 先走缓存
         String key = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 若缓存不为空,直接返回
-        if (StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, type);
+        // 先查本地的L1
+        Object local = getL1(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        long generation = l1Generation.get();
+        byte[] data = getBytes(key);
+        // 若缓存不为空,直接返回，和当前的类结构不匹配的旧数据当作未命中
+        if (data != null && data.length > 0) {
+            R cached = decode(data, type, false);
+            if (cached != null) {
+                putL1(key, cached, generation, l1TtlMs);
+                return cached;
+            }
         }
 
         // 为了解决缓存穿透问题，选择使用缓存空字符串的方法来解决
@@ -73,21 +232,15 @@ public class CacheClient {
         // 解决方法是，当用户访问一个数据库中不存在的数据时，redis缓存一个空字符串，设置一个过期时间
         // 前面是redis中有数据的情况，直接返回
         // 现在是redis中查询到数据库为空字符串的情况，也就是数据库中和redis中都没有数据，返回一个错误
-        if ("".equals(shopJson)) {
+        if (data != null && data.length == 0) {
+            putL1(key, NULL_VALUE, generation, l1TtlMs);
             return null;
         }
 
-        // 若缓存为空查询数据库
-        R r = dbFallBack.apply(id);
-        if (r == null) {
-            // 如果数据库中数据也为空，则写入到redis中，防止缓存穿透
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        // 写入缓存中 并且加上超时时间,防止数据的不一致性
-        String json = JSONUtil.toJsonStr(r);
-        this.set(key, json, time, unit);
-        return r;
+        // 若缓存为空查询数据库，同一个key在本实例只有一个线程去查，所有实例之间用互斥锁保证只查一次
+        return singleFlight(key, () -> loadWithMutex(key, type, false, () -> dbFallBack.apply(id),
+                // 写入缓存中 并且加上超时时间,防止数据的不一致性
+                r -> this.set(key, r, time, unit)));
     }
 
     // 根据指定的key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
@@ -105,52 +258,304 @@ public class CacheClient {
      */
     public <R, T> R queryWithLogicalExpire(
             String keyPrefix, T id, Class<R> type, Function<T, R> dbFallBack, Long time, TimeUnit unit) {
+        // 布隆过滤器判断一定不存在的id直接返回，不访问redis和数据库
+        if (!entityBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         // 先走缓存
         String key = keyPrefix + id;
-        String redisJson = stringRedisTemplate.opsForValue().get(key);
-        // 若缓存为空,则直接返回
-        // 这里的逻辑是所有的数据都在缓存中，只有过期和未过期的
-        // 没有数据不在缓存中这种情况
-        if (StrUtil.isBlank(redisJson)) {
+        // 先查本地的L1，L1中只有还没逻辑过期的数据，queryBatch会在同一个key下放空值的占位对象
+        Object local = getL1(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        long generation = l1Generation.get();
+        byte[] data = getBytes(key);
+        // 缓存的空值，数据库中也没有
+        if (data != null && data.length == 0) {
             return null;
         }
+        // 若缓存为空（没有预热过，或者更新数据时删除了），同步从数据库加载一次
+        // 同一个key在本实例只有一个线程去查，所有实例之间用互斥锁保证只查一次
+        if (data == null) {
+            return singleFlight(key, () -> loadWithMutex(key, type, true, () -> dbFallBack.apply(id),
+                    r -> this.setWithLogicalExpire(key, r, time, unit)));
+        }
 
-        // 判断时间是否过期
-        RedisData redisR = JSONUtil.toBean(redisJson, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisR.getData(), type);
-        LocalDateTime expireTime = redisR.getExpireTime();
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 如果未过期直接返回
+        // 判断时间是否过期，新格式只读头部的过期时间，升级前的json格式要解析一次
+        R r = decode(data, type, true);
+        // 和当前的类结构不匹配的旧数据、不认识的编解码器写入的数据，没有旧数据可以返回，和未命中一样同步加载
+        if (r == null) {
+            return singleFlight(key, () -> loadWithMutex(key, type, true, () -> dbFallBack.apply(id),
+                    r1 -> this.setWithLogicalExpire(key, r1, time, unit)));
+        }
+        long expireAt = expireAt(data);
+        if (expireAt > System.currentTimeMillis()) {
+            // 如果未过期直接返回，写入L1的过期时间不超过逻辑过期时间
+            putL1(key, r, generation, expireAt - System.currentTimeMillis());
             return r;
         }
-        // 过期了进行缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
-        if (tryLock(lockKey)) {
-            // 获取到互斥锁,检查缓存是否过期，如果缓存没过期则直接返回不需要缓存重建
-            RedisData redisShopDoubleCheck = JSONUtil.toBean(redisJson, RedisData.class);
-            R rDoubleCheck = JSONUtil.toBean((JSONObject) redisShopDoubleCheck.getData(), type);
-            LocalDateTime expireTimeDoubleCheck = redisR.getExpireTime();
-            if (expireTimeDoubleCheck.isAfter(LocalDateTime.now())) {
-                return rDoubleCheck;
+        // 过期了进行缓存重建，本实例已经有线程在重建就直接返回旧数据，不用再去抢锁
+        if (!rebuilding.add(key)) {
+            return r;
+        }
+        String lockKey = LOCK_CACHE_KEY + key;
+        if (!tryLock(lockKey)) {
+            // 其他实例在重建
+            rebuilding.remove(key);
+            return r;
+        }
+        try {
+            // 获取到互斥锁，重新读一次redis，其他实例可能刚刚重建完释放了锁，没过期就不需要重建
+            byte[] fresh = getBytes(key);
+            if (fresh != null && fresh.length > 0 && expireAt(fresh) > System.currentTimeMillis()) {
+                R freshR = decode(fresh, type, true);
+                if (freshR != null) {
+                    unlock(lockKey);
+                    rebuilding.remove(key);
+                    return freshR;
+                }
             }
-
             // 新开一个线程去重建缓存
             CACHE_REBUILD_EXECUTOR.submit(() -> {
-
                 try {
                     R r1 = dbFallBack.apply(id);
-                    this.setWithLogicalExpire(key, r1, time, unit);
+                    if (r1 == null) {
+                        // 数据库中已经删除了，缓存空值
+                        setNull(key);
+                    } else {
+                        this.setWithLogicalExpire(key, r1, time, unit);
+                    }
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("重建缓存失败，key = {}", key, e);
                 } finally {
                     unlock(lockKey);
+                    rebuilding.remove(key);
                 }
             });
-
+        } catch (RuntimeException e) {
+            unlock(lockKey);
+            rebuilding.remove(key);
+            throw e;
         }
         return r;
     }
 
+    /**
+     * 批量查询：一次MGET查询所有的key，未命中的id用一次批量查询从数据库加载，再用一次pipeline写回缓存
+     * 数据库中也没有的id和queryWithPassThrough一样缓存空值
+     * 用逻辑过期方式缓存的key在这里不检查过期时间，最多返回旧数据，重建交给单个查询；ids中不能有重复
+     * 已经逻辑过期的数据不写入L1，否则单个查询会一直从L1拿到旧数据
+     * @param keyPrefix       key的前缀
+     * @param ids             需要查询的id
+     * @param type            需要查询的entity类型
+     * @param dbBatchFallBack 根据一批id查询数据库，返回id到entity的映射，比如 listByIds 的结果按id分组
+     * @param time            时间长度
+     * @param unit            时间单位
+     * @return 和ids顺序一致的entity列表，不存在的id对应的位置是null
+     */
+    public <R, T> List<R> queryBatch(String keyPrefix, List<T> ids, Class<R> type,
+                                     Function<Collection<T>, Map<T, R>> dbBatchFallBack, Long time, TimeUnit unit) {
+        List<R> results = new ArrayList<>(Collections.nCopies(ids.size(), null));
+        // 1.布隆过滤器判断一定不存在的id直接跳过，其余的先查本地的L1
+        List<Integer> remote = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (!entityBloomFilter.mightContain(keyPrefix, ids.get(i))) {
+                continue;
+            }
+            Object local = getL1(keyPrefix + ids.get(i));
+            if (local == null) {
+                remote.add(i);
+            } else if (local != NULL_VALUE) {
+                results.set(i, type.cast(local));
+            }
+        }
+        if (remote.isEmpty()) {
+            return results;
+        }
+        // 2.一次MGET查询L1中没有的key
+        long generation = l1Generation.get();
+        byte[][] keys = new byte[remote.size()][];
+        for (int j = 0; j < remote.size(); j++) {
+            keys[j] = bytes(keyPrefix + ids.get(remote.get(j)));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        Map<T, Integer> misses = new LinkedHashMap<>();
+        for (int j = 0; j < remote.size(); j++) {
+            int i = remote.get(j);
+            String key = keyPrefix + ids.get(i);
+            byte[] data = values == null ? null : values.get(j);
+            if (data != null && data.length == 0) {
+                // 缓存的空值
+                putL1(key, NULL_VALUE, generation, l1TtlMs);
+                continue;
+            }
+            R cached = data == null ? null : decode(data, type, false);
+            if (cached == null) {
+                misses.put(ids.get(i), i);
+                continue;
+            }
+            results.set(i, cached);
+            // 写入L1的过期时间不超过逻辑过期时间，已经逻辑过期的不写入，单个查询才能发现过期去重建
+            putL1(key, cached, generation, CacheEnvelope.isEnvelope(data)
+                    ? CacheEnvelope.expireAt(data) - System.currentTimeMillis() : l1TtlMs);
+        }
+        if (misses.isEmpty()) {
+            return results;
+        }
+        // 3.未命中的id一次查询数据库 WHERE id IN (...)
+        Map<T, R> loaded = dbBatchFallBack.apply(misses.keySet());
+        long millis = unit.toMillis(time);
+        long expireAt = System.currentTimeMillis() + millis;
+        long nullMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        Map<byte[], byte[]> writes = new LinkedHashMap<>();
+        List<byte[]> nulls = new ArrayList<>();
+        for (Map.Entry<T, Integer> miss : misses.entrySet()) {
+            R r = loaded == null ? null : loaded.get(miss.getKey());
+            byte[] key = bytes(keyPrefix + miss.getKey());
+            if (r == null) {
+                nulls.add(key);
+            } else {
+                results.set(miss.getValue(), r);
+                writes.put(key, CacheEnvelope.wrap(codec, r, expireAt));
+            }
+        }
+        // 4.一次pipeline写回缓存，数据库中也没有的写入空值
+        byte[] empty = new byte[0];
+        byte[] channel = bytes(CACHE_INVALIDATE_CHANNEL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writes.forEach((key, data) -> connection.pSetEx(key, millis, data));
+            nulls.forEach(key -> connection.pSetEx(key, nullMillis, empty));
+            if (l1 != null) {
+                writes.keySet().forEach(key -> connection.publish(channel, key));
+                nulls.forEach(key -> connection.publish(channel, key));
+            }
+            return null;
+        });
+        return results;
+    }
+
+    /**
+     * 同一个key的并发加载在本实例内合并成一次，第一个线程执行loader，其他线程等待它的结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                return (R) existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            R r = loader.get();
+            mine.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * 用互斥锁从数据库加载，所有实例中只有拿到锁的一个去查数据库
+     * 拿到锁之后重新读一次redis（double check），其他实例可能已经写好了
+     * 没拿到锁就等一会儿再读redis，等太久了（超过锁的有效期）直接查数据库
+     */
+    private <R> R loadWithMutex(String key, Class<R> type, boolean logical, Supplier<R> dbFallBack, Consumer<R> writer) {
+        String lockKey = LOCK_CACHE_KEY + key;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (true) {
+            if (tryLock(lockKey)) {
+                try {
+                    byte[] data = getBytes(key);
+                    if (data != null && data.length == 0) {
+                        return null;
+                    }
+                    R cached = data == null ? null : decode(data, type, logical);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    R r = dbFallBack.get();
+                    if (r == null) {
+                        // 如果数据库中数据也为空，则写入到redis中，防止缓存穿透
+                        setNull(key);
+                        return null;
+                    }
+                    writer.accept(r);
+                    return r;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            // 没获取到互斥锁，休眠一段时间再看其他实例是否已经写好了
+            try {
+                Thread.sleep(MUTEX_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            byte[] data = getBytes(key);
+            if (data != null) {
+                if (data.length == 0) {
+                    return null;
+                }
+                R cached = decode(data, type, logical);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        return dbFallBack.get();
+    }
+
+
+    // 按缓存值头部的id选择编解码器，不是新格式的就是升级前的json，逻辑过期的旧格式外面还包着一层RedisData
+    private <R> R decode(byte[] data, Class<R> type, boolean logical) {
+        if (!CacheEnvelope.isEnvelope(data)) {
+            String json = new String(data, StandardCharsets.UTF_8);
+            if (logical) {
+                return JSONUtil.toBean((JSONObject) JSONUtil.toBean(json, RedisData.class).getData(), type);
+            }
+            return JSONUtil.toBean(json, type);
+        }
+        CacheCodec c = codecsById[CacheEnvelope.codecId(data) & 0xFF];
+        if (c == null) {
+            // 其他版本写入的、本实例不认识的编解码器
+            return null;
+        }
+        return CacheEnvelope.unwrap(c, data, type);
+    }
+
+    // 逻辑过期时间，新格式直接读头部
+    private static long expireAt(byte[] data) {
+        if (CacheEnvelope.isEnvelope(data)) {
+            return CacheEnvelope.expireAt(data);
+        }
+        return toEpochMilli(JSONUtil.toBean(new String(data, StandardCharsets.UTF_8), RedisData.class).getExpireTime());
+    }
+
+    private byte[] getBytes(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(bytes(key)));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 
     // 获取互斥锁，true代表获取成功，false获取失败
     private boolean tryLock(String key) {
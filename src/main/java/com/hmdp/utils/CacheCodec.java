@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient中缓存值的编解码器
+ * 实现类注册成spring的bean，CacheClient按hmdp.cache.codec选择写入用的编解码器，
+ * 读取时按缓存值头部记录的id找到对应的编解码器，切换编解码器之后旧的缓存还能读
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器的id，写在缓存值的头部，每个实现必须不同
+     */
+    byte id();
+
+    /**
+     * 配置中使用的名称
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    /**
+     * 从data的offset开始解码length个字节
+     * @return 解码后的对象，数据和当前的类结构不匹配时返回null，当作缓存未命中处理
+     */
+    <R> R decode(byte[] data, int offset, int length, Class<R> type);
+}
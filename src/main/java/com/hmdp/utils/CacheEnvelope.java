@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的格式：1字节魔数 + 1字节编解码器id + 8字节逻辑过期时间（毫秒时间戳，0表示没有逻辑过期） + 编码后的数据
+ * 逻辑过期时间是定长的头部，判断是否过期不需要反序列化
+ * 魔数不可能是json的第一个字节，不是这个魔数开头的就是升级前的json格式
+ */
+public class CacheEnvelope {
+
+    public static final byte MAGIC = (byte) 0xC5;
+    public static final int HEADER_LENGTH = 10;
+
+    private CacheEnvelope() {
+    }
+
+    public static byte[] wrap(CacheCodec codec, Object value, long expireAt) {
+        byte[] payload = codec.encode(value);
+        byte[] data = new byte[HEADER_LENGTH + payload.length];
+        data[0] = MAGIC;
+        data[1] = codec.id();
+        for (int i = 0; i < 8; i++) {
+            data[2 + i] = (byte) (expireAt >>> (56 - i * 8));
+        }
+        System.arraycopy(payload, 0, data, HEADER_LENGTH, payload.length);
+        return data;
+    }
+
+    public static boolean isEnvelope(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MAGIC;
+    }
+
+    public static byte codecId(byte[] data) {
+        return data[1];
+    }
+
+    public static long expireAt(byte[] data) {
+        long expireAt = 0;
+        for (int i = 0; i < 8; i++) {
+            expireAt = expireAt << 8 | (data[2 + i] & 0xFF);
+        }
+        return expireAt;
+    }
+
+    public static <R> R unwrap(CacheCodec codec, byte[] data, Class<R> type) {
+        return codec.decode(data, HEADER_LENGTH, data.length - HEADER_LENGTH, type);
+    }
+}
@@ -0,0 +1,303 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 防止缓存穿透的布隆过滤器，每种实体一个，保存在redis的位图 bloom:{name}:bits:hashes 中
+ * 1.启动时抢到锁的实例从数据库分页读取所有id写入位图，写完之后写入 bloom:{name}:bits:hashes:ready 标记
+ * 2.每个实例在本地保存一份位图，定时从redis同步（按位或，布隆过滤器只会增加不会删除）
+ * 3.新增实体时写入redis的位图，并广播id，所有实例立即写入本地的位图，不用等下一次同步
+ *   滚动发布时新旧参数的实例各用各的位图，收到参数不同的实例新增的id时也写入自己参数的位图
+ * 4.CacheClient按key的前缀找到过滤器，本地判断id一定不存在就直接返回，不访问redis和数据库
+ * 还没有构建完或者同步失败时放行所有请求，退回到缓存空值的方式
+ */
+@Slf4j
+@Component
+public class EntityBloomFilter {
+
+    // 构建时每页读取的id数
+    public static final int BUILD_PAGE_SIZE = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    // 位图的大小，默认2^24个bit，2MB，100万个id时误判率大约0.3%
+    @Value("${hmdp.bloom.bits:16777216}")
+    private long bits;
+
+    // 哈希函数的个数
+    @Value("${hmdp.bloom.hashes:7}")
+    private int hashes;
+
+    // 多久从redis同步一次本地的位图
+    @Value("${hmdp.bloom.sync-ms:60000}")
+    private long syncMs;
+
+    // key的前缀 -> 过滤器
+    private final Map<String, Filter> filtersByPrefix = new ConcurrentHashMap<>();
+    // 名称 -> 过滤器
+    private final Map<String, Filter> filtersByName = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService syncExecutor;
+
+    private class Filter {
+        final String name;
+        // 从数据库分页读取id：参数是上一页最后一个id，返回之后按id排序的一页id
+        final Function<Long, List<Long>> idPageLoader;
+        final String bitmapKey;
+        final String readyKey;
+        // 本地的位图，和redis的位图一样第0位是第一个字节的最高位
+        final byte[] local;
+        // 本地的位图和redis同步过，并且redis中的已经构建完成
+        volatile boolean ready;
+
+        Filter(String name, Function<Long, List<Long>> idPageLoader) {
+            this.name = name;
+            this.idPageLoader = idPageLoader;
+            // 位图大小和哈希函数个数不同的位图不能混用，参数放在key里
+            this.bitmapKey = BLOOM_KEY + "{" + name + "}:" + params();
+            this.readyKey = bitmapKey + BLOOM_READY_SUFFIX;
+            this.local = new byte[(int) ((bits + 7) >> 3)];
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        // 其他实例新增的id，消息内容是 name:bits:hashes:id
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.lastIndexOf(':');
+            int j = i > 0 ? body.lastIndexOf(':', i - 1) : -1;
+            int k = j > 0 ? body.lastIndexOf(':', j - 1) : -1;
+            Filter filter = k > 0 ? filtersByName.get(body.substring(0, k)) : null;
+            if (filter == null) {
+                return;
+            }
+            long[] offsets = offsets(body.substring(i + 1));
+            setLocal(filter, offsets);
+            if (!params().equals(body.substring(k + 1, i))) {
+                // 发送的实例参数和本实例不同，它只写了自己的位图
+                setRemote(filter, offsets);
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 注册一种实体的过滤器，在启动时调用
+     * @param name         实体名称，比如shop
+     * @param keyPrefix    这种实体的缓存key前缀
+     * @param idPageLoader 从数据库分页读取id，参数是上一页最后一个id（第一页是0），返回按id排序的下一页
+     */
+    public void register(String name, String keyPrefix, Function<Long, List<Long>> idPageLoader) {
+        if (!enabled) {
+            return;
+        }
+        Filter filter = new Filter(name, idPageLoader);
+        filtersByName.put(name, filter);
+        filtersByPrefix.put(keyPrefix, filter);
+    }
+
+    // 启动完成之后在后台构建和同步，不阻塞启动
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnReady() {
+        if (!enabled || filtersByName.isEmpty()) {
+            return;
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor();
+        syncExecutor.scheduleWithFixedDelay(this::syncAll, 0, syncMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 判断这个前缀下的id是否可能存在
+     * @return false表示一定不存在；没有这个前缀的过滤器或者还没构建完返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filtersByPrefix.get(keyPrefix);
+        if (filter == null || !filter.ready) {
+            return true;
+        }
+        for (long offset : offsets(id.toString())) {
+            if ((filter.local[(int) (offset >> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增实体之后调用，写入redis的位图并通知所有实例
+     */
+    public void add(String keyPrefix, Object id) {
+        Filter filter = filtersByPrefix.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        long[] offsets = offsets(id.toString());
+        setLocal(filter, offsets);
+        byte[] key = bytes(filter.bitmapKey);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(key, offset, true);
+            }
+            connection.publish(bytes(BLOOM_ADD_CHANNEL), bytes(filter.name + ":" + params() + ":" + id));
+            return null;
+        });
+    }
+
+    private void setRemote(Filter filter, long[] offsets) {
+        byte[] key = bytes(filter.bitmapKey);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(key, offset, true);
+            }
+            return null;
+        });
+    }
+
+    private void syncAll() {
+        for (Filter filter : filtersByName.values()) {
+            try {
+                sync(filter);
+            } catch (Exception e) {
+                log.error("同步布隆过滤器失败，name = {}", filter.name, e);
+            }
+        }
+    }
+
+    // redis中还没有构建好就先构建，再把redis的位图按位或到本地
+    // 先确认构建完成再读取位图，读到的一定是完整的位图
+    private void sync(Filter filter) {
+        String expected = params();
+        if (!expected.equals(stringRedisTemplate.opsForValue().get(filter.readyKey))) {
+            // 没有构建过，构建完成之前放行所有请求
+            filter.ready = false;
+            build(filter, expected);
+            if (!expected.equals(stringRedisTemplate.opsForValue().get(filter.readyKey))) {
+                // 别的实例正在构建
+                return;
+            }
+        }
+        byte[] remote = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(bytes(filter.bitmapKey)));
+        if (remote == null) {
+            filter.ready = false;
+            return;
+        }
+        synchronized (filter) {
+            for (int i = 0; i < remote.length && i < filter.local.length; i++) {
+                filter.local[i] |= remote[i];
+            }
+        }
+        filter.ready = true;
+    }
+
+    // 只有抢到锁的实例构建，构建期间新增的id也会直接写入位图，不会丢
+    private void build(Filter filter, String expected) {
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_KEY + filter.name + ":" + params());
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (expected.equals(stringRedisTemplate.opsForValue().get(filter.readyKey))) {
+                return;
+            }
+            long begin = System.currentTimeMillis();
+            byte[] key = bytes(filter.bitmapKey);
+            long lastId = 0;
+            long count = 0;
+            while (true) {
+                List<Long> ids = filter.idPageLoader.apply(lastId);
+                if (ids == null || ids.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Long id : ids) {
+                        for (long offset : offsets(id.toString())) {
+                            connection.setBit(key, offset, true);
+                        }
+                    }
+                    return null;
+                });
+                count += ids.size();
+                lastId = ids.get(ids.size() - 1);
+                if (ids.size() < BUILD_PAGE_SIZE) {
+                    break;
+                }
+            }
+            stringRedisTemplate.opsForValue().set(filter.readyKey, expected);
+            log.info("布隆过滤器构建完成，name = {}，id数：{}，耗时：{}ms", filter.name, count, System.currentTimeMillis() - begin);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setLocal(Filter filter, long[] offsets) {
+        synchronized (filter) {
+            for (long offset : offsets) {
+                filter.local[(int) (offset >> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+    }
+
+    // 位图的参数：位图大小:哈希函数个数
+    private String params() {
+        return bits + ":" + hashes;
+    }
+
+    // 双重哈希：第i个位置 = h1 + i * h2
+    private long[] offsets(String id) {
+        long[] hash = MurmurHash.hash128(id.getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(hash[0] + i * hash[1], bits);
+        }
+        return offsets;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * json编解码器，和原来缓存的格式一样可读，方便在redis中直接查看
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 1;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] data, int offset, int length, Class<R> type) {
+        return JSONUtil.toBean(new String(data, offset, length, StandardCharsets.UTF_8), type);
+    }
+}
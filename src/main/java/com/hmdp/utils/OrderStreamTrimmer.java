@@ -0,0 +1,216 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.json.JSONObject;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单stream的定时裁剪，每张券的stream.orders:{voucherId}分区分别裁剪
+ * 只删除头部已经被所有消费者组确认过的消息，还没消费或者还没确认的消息不会被删除
+ * 可以选择在删除之前把消息追加写入本地的归档文件
+ * 券的秒杀已经结束并且分区里的消息都处理完了，就把这个分区从 stream.orders:index 中去掉，
+ * 消费者不再读取它，每轮读取的分区数只和进行中的券有关，不会随着卖过的券越来越多
+ * 不开启裁剪时也会定时清理分区
+ */
+@Slf4j
+@Component
+public class OrderStreamTrimmer {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private VoucherOrderConsumerPool voucherOrderConsumerPool;
+
+    @Value("${hmdp.seckill.order.retention.enabled:true}")
+    private boolean enabled;
+
+    // 多久裁剪一次
+    @Value("${hmdp.seckill.order.retention.interval-ms:60000}")
+    private long intervalMs;
+
+    // 每次最多裁剪的消息数
+    @Value("${hmdp.seckill.order.retention.batch:1000}")
+    private int batch;
+
+    // 删除前是否归档
+    @Value("${hmdp.seckill.order.retention.archive-enabled:false}")
+    private boolean archiveEnabled;
+
+    @Value("${hmdp.seckill.order.retention.archive-path:archive/stream.orders.log}")
+    private String archivePath;
+
+    // 券结束之后再过多久清理分区，给结束前最后一刻写入的订单留出投递的时间
+    private static final long RETIRE_GRACE_MS = 60000;
+
+    public static final DefaultRedisScript<List> TRIM_SCAN_SCRIPT;
+    public static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCAN_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCAN_SCRIPT.setLocation(new ClassPathResource("stream_trim_scan.lua"));
+        TRIM_SCAN_SCRIPT.setResultType(List.class);
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private ScheduledExecutorService trimExecutor;
+
+    @PostConstruct
+    private void init() {
+        trimExecutor = Executors.newSingleThreadScheduledExecutor();
+        trimExecutor.scheduleWithFixedDelay(this::trimAll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (trimExecutor != null) {
+            trimExecutor.shutdownNow();
+        }
+    }
+
+    private void trimAll() {
+        // 多个实例同时裁剪会多删消息，所以同一时间只允许一个实例裁剪
+        RLock lock = redissonClient.getLock(LOCK_STREAM_TRIM_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (enabled) {
+                for (String stream : voucherOrderConsumerPool.listPartitions()) {
+                    try {
+                        trim(stream);
+                    } catch (Exception e) {
+                        log.error("裁剪stream异常，stream = {}", stream, e);
+                    }
+                }
+            }
+            retireFinishedPartitions();
+        } catch (Exception e) {
+            log.error("裁剪stream异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 已经结束的券，分区里的消息都处理完之后，删除分区并从索引中去掉
+    private void retireFinishedPartitions() {
+        Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAM_INDEX_KEY);
+        if (voucherIds == null) {
+            return;
+        }
+        for (String voucherId : voucherIds) {
+            Long id = Long.valueOf(voucherId);
+            String stream = SeckillKeys.orderStream(id);
+            // 秒杀数据已经过期，或者结束时间已经过去一段时间了
+            Object end = stringRedisTemplate.opsForHash().get(SeckillKeys.meta(id), "end");
+            if (end != null && Long.parseLong(end.toString()) + RETIRE_GRACE_MS > System.currentTimeMillis()) {
+                continue;
+            }
+            if (voucherOrderConsumerPool.hasUnconsumedMessages(stream)) {
+                continue;
+            }
+            // 开启了归档时等消息都归档并裁剪掉之后再删除
+            Long len = stringRedisTemplate.opsForStream().size(stream);
+            if (enabled && archiveEnabled && len != null && len > 0) {
+                continue;
+            }
+            stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_STREAM_INDEX_KEY, voucherId);
+            stringRedisTemplate.delete(Arrays.asList(stream, stream + STREAM_ARCHIVED_SUFFIX));
+            log.info("订单stream分区已处理完，删除 {}", stream);
+        }
+    }
+
+    /**
+     * 裁剪一个stream
+     * @return 删除的消息数
+     */
+    @SuppressWarnings("unchecked")
+    public long trim(String stream) throws IOException {
+        // 1.找出头部已经被确认过的消息
+        List<List<Object>> entries = stringRedisTemplate.execute(TRIM_SCAN_SCRIPT,
+                Collections.singletonList(stream), String.valueOf(batch));
+        if (entries == null || entries.isEmpty()) {
+            return 0;
+        }
+        // 2.先归档再删除
+        if (archiveEnabled) {
+            archive(stream, entries);
+        }
+        // 3.近似裁剪，最多删除这些消息
+        Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT,
+                Collections.singletonList(stream), String.valueOf(entries.size()));
+        log.debug("裁剪stream {}，可删除 {} 条，实际删除 {} 条", stream, entries.size(), trimmed);
+        return trimmed == null ? 0 : trimmed;
+    }
+
+    // 把还没归档过的消息追加写入归档文件，每行是一条消息的json，写完刷到磁盘
+    @SuppressWarnings("unchecked")
+    private void archive(String stream, List<List<Object>> entries) throws IOException {
+        // 近似裁剪不一定能删掉所有消息，上次已经归档过的消息要跳过
+        String cursorKey = stream + STREAM_ARCHIVED_SUFFIX;
+        String archived = stringRedisTemplate.opsForValue().get(cursorKey);
+        StringBuilder sb = new StringBuilder();
+        String lastId = null;
+        for (List<Object> entry : entries) {
+            String id = (String) entry.get(0);
+            if (archived != null && compareId(id, archived) <= 0) {
+                continue;
+            }
+            List<Object> fields = (List<Object>) entry.get(1);
+            JSONObject json = new JSONObject();
+            json.set("stream", stream);
+            json.set("id", id);
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                json.set((String) fields.get(i), fields.get(i + 1));
+            }
+            sb.append(json.toString()).append('\n');
+            lastId = id;
+        }
+        if (lastId == null) {
+            return;
+        }
+        File file = FileUtil.touch(archivePath);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        stringRedisTemplate.opsForValue().set(cursorKey, lastId);
+    }
+
+    // 比较两个stream消息id的大小
+    private static int compareId(String a, String b) {
+        String[] pa = a.split("-");
+        String[] pb = b.split("-");
+        int c = Long.compare(Long.parseLong(pa[0]), Long.parseLong(pb[0]));
+        return c != 0 ? c : Long.compare(Long.parseLong(pa[1]), Long.parseLong(pb[1]));
+    }
+}
@@ -13,10 +13,49 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_LIST_KEY = "cache:shop-type";
 
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_READY_SUFFIX = ":ready";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:shop:";
+    public static final Long CACHE_VOUCHER_LIST_TTL = 30L;
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:cache:";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_BUYERS_KEY = "seckill:buyers:";
+    // 升级前秒杀脚本记录已下单用户的set，只用于迁移
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_HEARTBEAT_KEY = "seckill:lease:heartbeat:";
+    public static final String SECKILL_ADMISSION_KEY = "seckill:admission:";
+    public static final String SECKILL_PHASE_KEY = "seckill:phase:";
+    public static final String SECKILL_QUEUE_KEY = "seckill:queue:";
+    public static final String SECKILL_QUEUE_ADMITTED_KEY = "seckill:queue:admitted:";
+    public static final String SECKILL_QUEUE_USERS_KEY = "seckill:queue:users:";
+    public static final String SECKILL_QUEUE_ACTIVE_KEY = "seckill:queue:active";
+    public static final String LOCK_SECKILL_QUEUE_KEY = "lock:seckill:queue";
+    public static final String SECKILL_ORDER_PERSISTED_KEY = "seckill:order:persisted";
+    public static final String LOCK_SECKILL_SCHEDULER_KEY = "lock:seckill:scheduler";
+    public static final String SECKILL_LEASE_REBALANCE_CHANNEL = "seckill:lease:rebalance";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_STREAM_INDEX_KEY = "stream.orders:index";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 600L;
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final String STREAM_ARCHIVED_SUFFIX = ":archived";
+    public static final String LOCK_STREAM_TRIM_KEY = "lock:stream:trim";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,11 +1,35 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
 
 /**
  * Author:CodeCan
@@ -15,7 +39,15 @@ import java.time.format.DateTimeFormatter;
  * 最高位是0，不更改代表证书
  * 后31位代表时间戳，计算2022年1月1日0时0分0秒到现在的秒数
  * 最后32位代表秒内的计数器
+ * 号段模式(hmdp.id.mode=segment)下每个实例用一次INCRBY预留一段序列号，在本地发号，
+ * 快用完时在后台提前取下一段，ID的格式和唯一性不变
+ * 雪花模式(hmdp.id.mode=snowflake)下ID完全在本地生成：1位雪花标记 + 40位毫秒时间戳 + 10位workerId + 12位毫秒内序列号，
+ * workerId从redis租用并定时续期，启动之后发号不需要访问网络
+ * 雪花标记是第62位，固定为1；redis模式的秒级时间戳要到2056年才会用到这一位，
+ * 所以两种模式的ID不会落在同一个范围里，切换模式之后不会发出重复的ID
+ * 同一个集群的所有实例必须使用同一种模式
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -28,13 +60,86 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 雪花模式各部分的位数
+     */
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long BEGIN_TIMESTAMP_MILLIS = BEGIN_TIMESTAMP * 1000;
+    private static final int SNOWFLAKE_TIMESTAMP_BITS = 40;
+    private static final long SNOWFLAKE_TIMESTAMP_MASK = (1L << SNOWFLAKE_TIMESTAMP_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << (SNOWFLAKE_TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    public static final DefaultRedisScript<Long> WORKER_RENEW_SCRIPT;
+    public static final DefaultRedisScript<Long> WORKER_RELEASE_SCRIPT;
+
+    static {
+        WORKER_RENEW_SCRIPT = new DefaultRedisScript<>();
+        WORKER_RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        WORKER_RENEW_SCRIPT.setResultType(Long.class);
+        // 释放租约和释放锁的逻辑一样：标示一致才删除
+        WORKER_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        WORKER_RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        WORKER_RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 号段预取线程
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private final StringRedisTemplate stringRedisTemplate;
 
+    // 发号模式 redis:每个ID一次INCR，segment:号段模式，snowflake:雪花模式
+    @Value("${hmdp.id.mode:redis}")
+    private String mode;
+
+    // 每个号段的大小
+    @Value("${hmdp.id.segment-size:1000}")
+    private long segmentSize;
+
+    // 号段剩余不到这个比例时预取下一段
+    @Value("${hmdp.id.segment-prefetch-ratio:0.2}")
+    private double segmentPrefetchRatio;
+
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    // workerId租约时长
+    @Value("${hmdp.id.worker-lease-ms:30000}")
+    private long workerLeaseMs;
+
+    // 允许的最大时钟回拨，回拨不超过这个时间就等待，超过就报错
+    @Value("${hmdp.id.max-backward-ms:5}")
+    private long maxBackwardMs;
+
+    // 当前实例的标示，用来判断workerId租约是不是自己的
+    private final String workerToken = UUID.randomUUID().toString(true);
+
+    // 租到的workerId，-1代表没有租到，不能发号
+    private volatile long workerId = -1;
+
+    // 租约在本地认为有效的截止时间，续期失败超过这个时间就停止发号，避免和接手这个workerId的实例重复
+    private volatile long leaseValidUntil = 0;
+
+    private long lastTimestamp = -1;
+
+    private long sequence = 0;
+
+    private ScheduledExecutorService workerHeartbeatExecutor;
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
     public long nextId(String keyPrefix){
+        if ("segment".equals(mode)) {
+            return nextSegmentId(keyPrefix);
+        }
+        if ("snowflake".equals(mode)) {
+            return nextSnowflakeId();
+        }
         // 生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long curSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -42,12 +147,228 @@ public class RedisIdWorker {
 
         // 生成序列号
         // 每天都生成一个序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         long increment = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         // 拼接
         return timestamp << COUNT_BITS | increment;
     }
 
+    /**
+     * 异步生成ID，redis模式下用lettuce的异步INCR，不阻塞调用线程
+     * 号段模式和雪花模式本来就是在本地发号，直接返回，号段模式只有在预取跟不上时才会同步等待一次INCRBY
+     */
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix, RedisClusterAsyncCommands<String, String> async) {
+        if ("segment".equals(mode) || "snowflake".equals(mode)) {
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DATE_FORMATTER);
+        return async.incr("icr:" + keyPrefix + ":" + date).toCompletableFuture()
+                .thenApply(increment -> timestamp << COUNT_BITS | increment);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        if (!leaseWorkerId()) {
+            throw new IllegalStateException("没有可用的workerId");
+        }
+        // 每过租约时长的1/3续期一次
+        workerHeartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+        workerHeartbeatExecutor.scheduleWithFixedDelay(this::renewWorkerId, workerLeaseMs / 3, workerLeaseMs / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (workerHeartbeatExecutor == null) {
+            return;
+        }
+        workerHeartbeatExecutor.shutdownNow();
+        long id = workerId;
+        if (id >= 0) {
+            stringRedisTemplate.execute(WORKER_RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), workerToken);
+        }
+    }
+
+    // 从随机位置开始找一个没被占用的workerId，SET id:worker:n token NX PX lease
+    private boolean leaseWorkerId() {
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            // 租约从redis收到SET之前算起，SET返回得再慢本地也不会比redis晚过期
+            long now = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, workerToken, workerLeaseMs, TimeUnit.MILLISECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                leaseValidUntil = now + workerLeaseMs;
+                workerId = id;
+                log.info("租用workerId = {}", id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 续期workerId，租约丢了就停止发号并重新租一个
+    private void renewWorkerId() {
+        try {
+            long id = workerId;
+            if (id >= 0) {
+                long now = System.currentTimeMillis();
+                Long renewed = stringRedisTemplate.execute(WORKER_RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                        workerToken, String.valueOf(workerLeaseMs));
+                if (renewed != null && renewed == 1) {
+                    leaseValidUntil = now + workerLeaseMs;
+                    return;
+                }
+                log.error("workerId = {} 的租约已经丢失", id);
+                workerId = -1;
+            }
+            leaseWorkerId();
+        } catch (Exception e) {
+            log.error("续期workerId异常", e);
+        }
+    }
+
+    // 雪花模式，同一毫秒内序列号递增，序列号用完就等到下一毫秒
+    private synchronized long nextSnowflakeId() {
+        long id = workerId;
+        if (id < 0) {
+            throw new IllegalStateException("没有可用的workerId");
+        }
+        long timestamp = System.currentTimeMillis();
+        if (timestamp >= leaseValidUntil) {
+            throw new IllegalStateException("workerId的租约已经过期，拒绝生成ID");
+        }
+        if (timestamp < lastTimestamp) {
+            // 时钟回拨，回拨的时间不长就等一等
+            long backward = lastTimestamp - timestamp;
+            if (backward > maxBackwardMs) {
+                throw new IllegalStateException("时钟回拨了" + backward + "ms，拒绝生成ID");
+            }
+            timestamp = waitUntil(lastTimestamp);
+        }
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 这一毫秒的序列号用完了
+                timestamp = waitUntil(lastTimestamp + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        long elapsed = timestamp - BEGIN_TIMESTAMP_MILLIS;
+        if (elapsed > SNOWFLAKE_TIMESTAMP_MASK) {
+            // 40位毫秒时间戳用到2056年，再往后会碰到雪花标记
+            throw new IllegalStateException("雪花模式的时间戳已经用完，拒绝生成ID");
+        }
+        return SNOWFLAKE_FLAG
+                | elapsed << (WORKER_BITS + SEQUENCE_BITS)
+                | id << SEQUENCE_BITS
+                | sequence;
+    }
+
+    // 自旋等待到指定的毫秒，最多等maxBackwardMs + 1毫秒
+    private long waitUntil(long target) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBackwardMs + 1);
+        long timestamp = System.currentTimeMillis();
+        while (timestamp < target) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("等待时钟超时，拒绝生成ID");
+            }
+            Thread.yield();
+            timestamp = System.currentTimeMillis();
+        }
+        return timestamp;
+    }
+
+    // 号段模式，时间戳和日期的算法和上面一致，只是不用每次都创建LocalDateTime和格式化日期
+    private long nextSegmentId(String keyPrefix) {
+        long millis = System.currentTimeMillis();
+        long curSecond = (millis + TimeZone.getDefault().getOffset(millis)) / 1000;
+        long timestamp = curSecond - BEGIN_TIMESTAMP;
+        long epochDay = Math.floorDiv(curSecond, 86400L);
+        SegmentBuffer buffer = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        return timestamp << COUNT_BITS | buffer.next(epochDay);
+    }
+
+    // 一段已经在redis中预留好的序列号 [cursor, max]
+    private static class Segment {
+        private final long epochDay;
+        private final AtomicLong cursor;
+        private final long max;
+
+        Segment(long epochDay, long min, long max) {
+            this.epochDay = epochDay;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    // 每个业务前缀一个号段缓冲，当前号段用完就切换到预取好的下一段
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long epochDay) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.epochDay == epochDay) {
+                    long sequence = segment.cursor.getAndIncrement();
+                    if (sequence <= segment.max) {
+                        // 剩余数量到达阈值时触发一次预取
+                        if (segment.max - sequence == (long) (segmentSize * segmentPrefetchRatio)) {
+                            prefetch(epochDay);
+                        }
+                        return sequence;
+                    }
+                }
+                // 号段用完了或者跨天了，切换号段
+                synchronized (this) {
+                    if (current == segment) {
+                        Segment prefetched = next;
+                        next = null;
+                        current = prefetched != null && prefetched.epochDay == epochDay ? prefetched : load(epochDay);
+                    }
+                }
+            }
+        }
+
+        private void prefetch(long epochDay) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            SEGMENT_PREFETCH_EXECUTOR.submit(() -> {
+                try {
+                    Segment segment = load(epochDay);
+                    synchronized (this) {
+                        if (next == null) {
+                            next = segment;
+                        }
+                    }
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        // INCRBY icr:order:yyyy:MM:dd segmentSize，一次预留一整段序列号
+        private Segment load(long epochDay) {
+            String date = LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+            long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+            return new Segment(epochDay, max - segmentSize + 1, max);
+        }
+    }
 
     public static void main(String[] args) {
         // 计算2022年1月1日0时0分0秒的时间戳
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_INDEX_KEY;
+
+/**
+ * 本地缓存的进行中的秒杀券
+ * 写入redis的秒杀券都登记在 stream.orders:index 中，定时读取索引和每张券元数据中的结束时间
+ * 秒杀路径上的本地状态（准入令牌桶、请求合并的批次）按路径中的券id创建，
+ * 创建之前先在这里判断券是否存在并且还没结束，随便填的券id不会在本地留下任何东西
+ * 券结束或者从索引中去掉时通知注册的监听器，清理本地状态
+ */
+@Slf4j
+@Component
+public class SeckillActiveVouchers {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 多久刷新一次
+    @Value("${hmdp.seckill.active-refresh-ms:1000}")
+    private long refreshMs;
+
+    // 券id -> 结束时间
+    private volatile Map<Long, Long> endTimes = Collections.emptyMap();
+
+    // 券结束时的监听器，参数是券id
+    private final List<Consumer<Long>> retireListeners = new CopyOnWriteArrayList<>();
+
+    private ScheduledExecutorService refreshExecutor;
+
+    @PostConstruct
+    private void init() {
+        refresh();
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+        refreshExecutor.scheduleWithFixedDelay(this::refresh, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * 券是否存在并且还没结束，只查本地
+     */
+    public boolean isActive(Long voucherId) {
+        Long end = endTimes.get(voucherId);
+        return end != null && System.currentTimeMillis() <= end;
+    }
+
+    /**
+     * 注册券结束时的监听器
+     */
+    public void onRetire(Consumer<Long> listener) {
+        retireListeners.add(listener);
+    }
+
+    // 读取索引中所有券的结束时间，一次pipeline读完
+    private void refresh() {
+        try {
+            Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAM_INDEX_KEY);
+            List<Long> voucherIds = new ArrayList<>();
+            if (members != null) {
+                members.forEach(id -> voucherIds.add(Long.valueOf(id)));
+            }
+            List<Object> ends = voucherIds.isEmpty() ? Collections.emptyList()
+                    : stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        StringRedisConnection conn = (StringRedisConnection) connection;
+                        voucherIds.forEach(id -> conn.hGet(SeckillKeys.meta(id), "end"));
+                        return null;
+                    });
+            long now = System.currentTimeMillis();
+            Map<Long, Long> active = new HashMap<>(voucherIds.size() * 2);
+            for (int i = 0; i < voucherIds.size(); i++) {
+                Object end = ends.get(i);
+                if (end != null && Long.parseLong(end.toString()) >= now) {
+                    active.put(voucherIds.get(i), Long.parseLong(end.toString()));
+                }
+            }
+            Map<Long, Long> previous = endTimes;
+            endTimes = active;
+            for (Long voucherId : previous.keySet()) {
+                if (!active.containsKey(voucherId)) {
+                    retire(voucherId);
+                }
+            }
+        } catch (Exception e) {
+            log.error("刷新进行中的秒杀券异常", e);
+        }
+    }
+
+    private void retire(Long voucherId) {
+        for (Consumer<Long> listener : retireListeners) {
+            try {
+                listener.accept(voucherId);
+            } catch (Exception e) {
+                log.error("清理秒杀券的本地状态异常，voucherId = {}", voucherId, e);
+            }
+        }
+    }
+}
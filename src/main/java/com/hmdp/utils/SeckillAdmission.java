@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 秒杀请求的准入控制，放在seckill.lua前面
+ * 每张券每秒有一份所有实例共享的预算，预算 = 剩余库存 * multiplier，保存在 seckill:admission:{voucherId}:second 中
+ * 每个实例按块从redis租用令牌放到本地的令牌桶，请求在本地扣令牌，一块用完了才访问一次redis
+ * 这一秒的预算用完之后，后面的请求在本地直接拒绝，到下一秒再去租用
+ * 这样访问redis的次数只和库存有关，和抢购的人数无关
+ * 租用通过lettuce的异步命令执行，等待租用结果的请求不占用线程
+ * 只给进行中的券创建令牌桶，券结束之后删除
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private RedisClusterAsyncCommands<String, String> asyncRedisCommands;
+
+    @Resource
+    private ExecutorService seckillCallbackExecutor;
+
+    @Resource
+    private SeckillActiveVouchers seckillActiveVouchers;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    // 每秒预算是剩余库存的几倍，留一些余量给重复下单等会失败的请求
+    @Value("${hmdp.seckill.admission.budget-multiplier:2.0}")
+    private double budgetMultiplier;
+
+    // 每秒最少的预算，库存卖完了也要放少量请求过去，让脚本返回售罄
+    @Value("${hmdp.seckill.admission.min-budget:10}")
+    private int minBudget;
+
+    // 每次从redis租用的令牌数
+    @Value("${hmdp.seckill.admission.lease-chunk:20}")
+    private int leaseChunk;
+
+    private static final DefaultRedisScript<Long> ADMISSION_SCRIPT;
+
+    static {
+        ADMISSION_SCRIPT = new DefaultRedisScript<>();
+        ADMISSION_SCRIPT.setLocation(new ClassPathResource("seckill_admission.lua"));
+        ADMISSION_SCRIPT.setResultType(Long.class);
+    }
+
+    private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    // 本地令牌桶，只在当前这一秒内有效
+    private static class Bucket {
+        long second;
+        long tokens;
+        // 这一秒的集群预算已经用完
+        boolean exhausted;
+        // 正在进行的租用，令牌用完时只有一个请求去redis租用，其他请求等它完成
+        CompletableFuture<Void> leasing;
+    }
+
+    @PostConstruct
+    private void init() {
+        seckillActiveVouchers.onRetire(buckets::remove);
+    }
+
+    /**
+     * 尝试获取一个令牌，本地有令牌时直接完成，需要租用时用lettuce的异步命令执行脚本，不阻塞调用线程
+     * @return false表示这一秒的名额已经发完了，或者券不存在、已经结束，请求直接拒绝
+     */
+    public CompletableFuture<Boolean> tryAcquireAsync(Long voucherId) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (!seckillActiveVouchers.isActive(voucherId)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        long second = System.currentTimeMillis() / 1000;
+        Bucket bucket = buckets.computeIfAbsent(voucherId, k -> new Bucket());
+        CompletableFuture<Void> leasing;
+        boolean leader = false;
+        // 锁里面只有本地的计算，不访问redis
+        synchronized (bucket) {
+            if (bucket.second != second) {
+                // 新的一秒，上一秒没用完的令牌作废
+                bucket.second = second;
+                bucket.tokens = 0;
+                bucket.exhausted = false;
+                bucket.leasing = null;
+            }
+            if (bucket.tokens > 0) {
+                bucket.tokens--;
+                return CompletableFuture.completedFuture(true);
+            }
+            if (bucket.exhausted) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (bucket.leasing == null) {
+                bucket.leasing = new CompletableFuture<>();
+                leader = true;
+            }
+            leasing = bucket.leasing;
+        }
+        if (leader) {
+            lease(voucherId, second).whenCompleteAsync((granted, e) -> {
+                synchronized (bucket) {
+                    if (bucket.second == second) {
+                        bucket.tokens += granted;
+                        bucket.exhausted = granted == 0;
+                    }
+                    if (bucket.leasing == leasing) {
+                        bucket.leasing = null;
+                    }
+                }
+                leasing.complete(null);
+            }, seckillCallbackExecutor);
+        }
+        // 租用完成之后重新取一次令牌，令牌被其他请求取完了就再租一次，预算用完了就拒绝
+        return leasing.thenComposeAsync(v -> tryAcquireAsync(voucherId), seckillCallbackExecutor);
+    }
+
+    private CompletableFuture<Long> lease(Long voucherId, long second) {
+        String[] keys = {SeckillKeys.admission(voucherId, second), SeckillKeys.stock(voucherId), SeckillKeys.lease(voucherId)};
+        return AsyncRedisSupport.<Long>eval(asyncRedisCommands, ADMISSION_SCRIPT, ScriptOutputType.INTEGER, keys,
+                        String.valueOf(leaseChunk), String.valueOf(budgetMultiplier), String.valueOf(minBudget))
+                .handle((granted, e) -> {
+                    if (e != null) {
+                        // redis异常时秒杀脚本也执行不了，直接拒绝
+                        log.error("租用秒杀令牌失败，voucherId = {}", voucherId, e);
+                        return 0L;
+                    }
+                    return granted == null ? 0L : granted;
+                });
+    }
+}
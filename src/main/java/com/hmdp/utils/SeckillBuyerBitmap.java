@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.User;
+import com.hmdp.service.IUserService;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 秒杀券已下单用户的位图
+ * 用户id作为bit的偏移量，一个用户只占1个bit，判断是否下过单是精确的
+ * 为了避免用户id很大时单个key过大，按用户id每 2^23 个分成一个key，每个key最多1MB
+ * key的格式：seckill:buyers:{voucherId}:(userId >> 23)，带着券的hash tag，和秒杀脚本的其他key在同一个slot上
+ * 这里的分片规则要和seckill.lua保持一致
+ */
+@Component
+public class SeckillBuyerBitmap {
+
+    // 每个分片的bit数
+    public static final int CHUNK_BITS = 23;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> BUYERS_MERGE_SCRIPT;
+
+    static {
+        BUYERS_MERGE_SCRIPT = new DefaultRedisScript<>();
+        BUYERS_MERGE_SCRIPT.setLocation(new ClassPathResource("buyers_merge.lua"));
+        BUYERS_MERGE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IUserService userService;
+
+    public static String chunkKey(Long voucherId, long chunk) {
+        return SeckillKeys.buyers(voucherId, chunk);
+    }
+
+    /**
+     * 把一批用户批量写入位图
+     * 每个分片先在本地拼好整个位图，写到临时key，再用BITOP OR合并进去，不会覆盖掉并发写入的bit
+     * 临时key的写入、合并和删除在一个lua脚本里执行，所有分片的脚本用一次pipeline发送
+     * 位图是二进制参数，不能用StringRedisTemplate执行脚本，在连接上直接EVAL
+     * @param expireAt 位图的过期时间，毫秒时间戳
+     */
+    public void addAll(Long voucherId, Collection<Long> userIds, long expireAt) {
+        Map<Long, byte[]> chunks = new HashMap<>();
+        for (Long userId : userIds) {
+            long chunk = userId >> CHUNK_BITS;
+            int offset = (int) (userId & CHUNK_MASK);
+            byte[] bits = chunks.get(chunk);
+            // 数组长度只要能放下最大的偏移量就行
+            if (bits == null || bits.length <= offset >> 3) {
+                bits = Arrays.copyOf(bits == null ? new byte[0] : bits, (offset >> 3) + 1);
+                chunks.put(chunk, bits);
+            }
+            // redis的位图中第0位是第一个字节的最高位
+            bits[offset >> 3] |= (byte) (0x80 >>> (offset & 7));
+        }
+        byte[] script = bytes(BUYERS_MERGE_SCRIPT.getScriptAsString());
+        byte[] expireAtArg = bytes(String.valueOf(expireAt));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Long, byte[]> entry : chunks.entrySet()) {
+                String key = chunkKey(voucherId, entry.getKey());
+                connection.eval(script, ReturnType.INTEGER, 2,
+                        bytes(key), bytes(key + ":tmp"), entry.getValue(), expireAtArg);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 位图最多有多少个分片，由当前最大的用户id决定，分片号从0到chunkCount-1
+     */
+    public long chunkCount() {
+        User user = userService.query().select("max(id) as id").one();
+        return user == null || user.getId() == null ? 1 : (user.getId() >> CHUNK_BITS) + 1;
+    }
+
+    /**
+     * 统计某张券的位图占用的内存
+     * 分片的key由最大的用户id算出来，一次pipeline查完所有分片，不用SCAN整个keyspace
+     * @return 分片数、下单用户数、占用的字节数
+     */
+    public Map<String, Object> memoryReport(Long voucherId) {
+        long chunkCount = chunkCount();
+        List<Object> stats = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long chunk = 0; chunk < chunkCount; chunk++) {
+                byte[] key = bytes(chunkKey(voucherId, chunk));
+                connection.bitCount(key);
+                connection.strLen(key);
+            }
+            return null;
+        });
+        long chunks = 0;
+        long buyers = 0;
+        long totalBytes = 0;
+        for (int i = 0; i + 1 < stats.size(); i += 2) {
+            long size = stats.get(i + 1) == null ? 0 : (Long) stats.get(i + 1);
+            if (size == 0) {
+                // 这个分片没有人下单，key不存在
+                continue;
+            }
+            chunks++;
+            buyers += stats.get(i) == null ? 0 : (Long) stats.get(i);
+            totalBytes += size;
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        report.put("chunks", chunks);
+        report.put("buyers", buyers);
+        report.put("bytes", totalBytes);
+        return report;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
+import static com.hmdp.utils.SeckillOrderStatusNotifier.QUEUED;
+
+/**
+ * 秒杀请求合并
+ * 同一张券在一个很短的窗口内（默认200微秒）到达的请求攒成一批，一次EVALSHA执行seckill.lua，
+ * 脚本按顺序处理每个请求并返回每个请求的结果，再分别完成每个调用方的future
+ * 一批攒满max-batch个请求就立即发送，不等窗口结束
+ * 脚本在redis中是原子执行的，一批请求和逐个执行的结果完全一样，一人一单和库存的语义不变
+ * 脚本用到的key全部通过KEYS传入，都带着 {voucherId} hash tag，redis集群中一批请求只访问一个slot
+ * 只给进行中的券创建批次，券结束之后删除
+ */
+@Slf4j
+@Component
+public class SeckillCoalescer {
+
+    public static final DefaultRedisScript<List> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private RedisClusterAsyncCommands<String, String> asyncRedisCommands;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Resource
+    private SeckillActiveVouchers seckillActiveVouchers;
+
+    // 秒杀结束后已下单用户的位图再保留多久
+    @Value("${hmdp.seckill.buyers-retain-ms:86400000}")
+    private long buyersRetainMs;
+
+    // 关闭时每个请求单独执行一次脚本
+    @Value("${hmdp.seckill.coalesce.enabled:true}")
+    private boolean enabled;
+
+    // 攒批的窗口，微秒
+    @Value("${hmdp.seckill.coalesce.window-micros:200}")
+    private long windowMicros;
+
+    // 一批最多的请求数
+    @Value("${hmdp.seckill.coalesce.max-batch:64}")
+    private int maxBatch;
+
+    private final Map<Long, Batch> batches = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flushExecutor;
+
+    // 一个秒杀请求
+    private static class Entry {
+        final Long userId;
+        final Long orderId;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Entry(Long userId, Long orderId) {
+            this.userId = userId;
+            this.orderId = orderId;
+        }
+    }
+
+    // 某张券正在攒的请求
+    private static class Batch {
+        final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        // 是否已经安排了窗口结束时的发送
+        final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+
+    @PostConstruct
+    private void init() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        // 已经取走批次的请求仍然会被安排好的发送带走，删除批次不会丢请求
+        seckillActiveVouchers.onRetire(batches::remove);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdown();
+    }
+
+    /**
+     * 提交一个秒杀请求
+     * @return seckill.lua中这个请求的结果
+     */
+    public CompletableFuture<Long> submit(Long voucherId, Long userId, Long orderId) {
+        // 不在进行中的券不创建批次，按券不存在处理，和脚本的返回值一致
+        if (!seckillActiveVouchers.isActive(voucherId)) {
+            return CompletableFuture.completedFuture(3L);
+        }
+        Entry entry = new Entry(userId, orderId);
+        if (!enabled) {
+            List<Entry> single = new ArrayList<>(1);
+            single.add(entry);
+            send(voucherId, single);
+            return entry.future;
+        }
+        Batch batch = batches.computeIfAbsent(voucherId, k -> new Batch());
+        batch.queue.add(entry);
+        if (batch.size.incrementAndGet() >= maxBatch) {
+            // 攒满了，在当前线程直接发送，发送是异步的，不会阻塞
+            flush(voucherId, batch);
+        } else if (batch.scheduled.compareAndSet(false, true)) {
+            // 这一批的第一个请求，安排窗口结束时发送
+            flushExecutor.schedule(() -> {
+                // 先清除标记再取请求，之后进来的请求要么被这次取走，要么会重新安排一次发送
+                batch.scheduled.set(false);
+                flush(voucherId, batch);
+            }, windowMicros, TimeUnit.MICROSECONDS);
+        }
+        return entry.future;
+    }
+
+    // 把队列中的请求按max-batch一批批发出去
+    private void flush(Long voucherId, Batch batch) {
+        while (true) {
+            List<Entry> entries = new ArrayList<>(maxBatch);
+            Entry entry;
+            while (entries.size() < maxBatch && (entry = batch.queue.poll()) != null) {
+                entries.add(entry);
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            batch.size.addAndGet(-entries.size());
+            send(voucherId, entries);
+        }
+    }
+
+    // 一次EVALSHA执行一批请求，脚本还没有加载过就用EVAL执行一次，之后redis中就有缓存了
+    private void send(Long voucherId, List<Entry> entries) {
+        String[] keys = new String[5 + entries.size()];
+        keys[0] = SeckillKeys.meta(voucherId);
+        keys[1] = SeckillKeys.stock(voucherId);
+        keys[2] = SeckillKeys.soldOut(voucherId);
+        keys[3] = SeckillKeys.orderStream(voucherId);
+        keys[4] = SeckillKeys.lease(voucherId);
+        String[] args = new String[4 + entries.size() * 2];
+        args[0] = voucherId.toString();
+        args[1] = String.valueOf(System.currentTimeMillis());
+        args[2] = String.valueOf(buyersRetainMs);
+        // 开启库存租约时库存已经在本地扣过了，脚本只扣减本实例租约中的数量
+        args[3] = seckillStockLease.isEnabled() ? seckillStockLease.getInstanceId() : "";
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            keys[5 + i] = SeckillBuyerBitmap.chunkKey(voucherId, entry.userId >> SeckillBuyerBitmap.CHUNK_BITS);
+            args[4 + i * 2] = entry.userId.toString();
+            args[5 + i * 2] = entry.orderId.toString();
+        }
+        AsyncRedisSupport.<List<Object>>eval(asyncRedisCommands, SECKILL_SCRIPT, ScriptOutputType.MULTI, keys, args)
+                .whenComplete((results, e) -> complete(entries, results, e));
+    }
+
+    // 在lettuce的事件循环上执行，这里只能发异步命令；调用方的后续处理都用thenXxxAsync切到回调线程池
+    private void complete(List<Entry> entries, List<Object> results, Throwable e) {
+        if (e != null) {
+            log.error("执行秒杀脚本失败，本批请求数：{}", entries.size(), e);
+            entries.forEach(entry -> entry.future.completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Long result = (Long) results.get(i);
+            if (result != 0) {
+                entry.future.complete(result);
+                continue;
+            }
+            // 下单成功，写入排队中的订单状态，订单状态的key不在这张券的slot上，不能放在脚本里写
+            // 用NX，消费者已经处理完写入了最终状态时不覆盖
+            RedisFuture<String> queued = asyncRedisCommands.set(SECKILL_ORDER_STATUS_KEY + entry.orderId,
+                    SeckillOrderStatusNotifier.value(QUEUED, entry.userId),
+                    SetArgs.Builder.nx().ex(SECKILL_ORDER_STATUS_TTL));
+            queued.whenComplete((r, e2) -> {
+                if (e2 != null) {
+                    // 订单已经进入队列，状态写不进去只影响查询，不影响下单
+                    log.error("写入订单状态失败，orderId = {}", entry.orderId, e2);
+                }
+                entry.future.complete(result);
+            });
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的key
+ * 同一张券的所有key都用 {voucherId} 作为hash tag，在redis集群中落在同一个slot上，
+ * 这样秒杀脚本一次访问多个key时不会出现CROSSSLOT错误
+ * 脚本中用到的key全部由调用方通过KEYS传入
+ */
+public class SeckillKeys {
+
+    private SeckillKeys() {
+    }
+
+    private static String tag(Long voucherId) {
+        return "{" + voucherId + "}";
+    }
+
+    public static String meta(Long voucherId) {
+        return SECKILL_META_KEY + tag(voucherId);
+    }
+
+    public static String stock(Long voucherId) {
+        return SECKILL_STOCK_KEY + tag(voucherId);
+    }
+
+    public static String soldOut(Long voucherId) {
+        return SECKILL_SOLD_OUT_KEY + tag(voucherId);
+    }
+
+    public static String lease(Long voucherId) {
+        return SECKILL_LEASE_KEY + tag(voucherId);
+    }
+
+    public static String leaseHeartbeat(Long voucherId) {
+        return SECKILL_LEASE_HEARTBEAT_KEY + tag(voucherId);
+    }
+
+    public static String buyers(Long voucherId, long chunk) {
+        return SECKILL_BUYERS_KEY + tag(voucherId) + ":" + chunk;
+    }
+
+    public static String admission(Long voucherId, long second) {
+        return SECKILL_ADMISSION_KEY + tag(voucherId) + ":" + second;
+    }
+
+    // 每张券一个订单stream，和券的其他key在同一个slot上，秒杀脚本可以直接写入
+    public static String orderStream(Long voucherId) {
+        return SECKILL_ORDER_STREAM + ":" + tag(voucherId);
+    }
+}
@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单的处理状态
+ * 下单时lua脚本写入queued，消费者写入数据库之后改成persisted，下单失败或者进入死信队列改成failed
+ * 状态保存在 seckill:order:status:{orderId} 中，值是 status:userId，过期时间很短，只有下单的用户能查询自己订单的状态
+ * 客户端通过长轮询或者SSE等待状态变化，状态变化时通过redis的发布订阅通知所有实例，唤醒本地等待的请求
+ * 消息内容是 orderId:status，多个订单用逗号分隔
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatusNotifier {
+
+    public static final String QUEUED = "queued";
+    public static final String PERSISTED = "persisted";
+    public static final String FAILED = "failed";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 长轮询和SSE最多挂起的时间，0在spring中代表永不超时，所以超时时间至少是1ms
+    public static final long MAX_WAIT_MS = 30000;
+
+    // 本实例上正在等待订单状态变化的请求
+    private final Map<Long, Set<Consumer<String>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            for (String item : body.split(",")) {
+                int i = item.indexOf(':');
+                if (i > 0) {
+                    wakeUp(Long.valueOf(item.substring(0, i)), item.substring(i + 1));
+                }
+            }
+        }, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    // 状态key中保存的值
+    public static String value(String status, Long userId) {
+        return status + ":" + userId;
+    }
+
+    /**
+     * 批量写入订单的最终状态，并通知所有实例
+     * 所有订单的状态一次pipeline写入，通知也只发一条消息
+     * @param statuses 订单id -> 状态
+     * @param userIds  订单id -> 下单的用户id
+     */
+    public void complete(Map<Long, String> statuses, Map<Long, Long> userIds) {
+        if (statuses.isEmpty()) {
+            return;
+        }
+        StringJoiner body = new StringJoiner(",");
+        statuses.forEach((orderId, status) -> body.add(orderId + ":" + status));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            statuses.forEach((orderId, status) ->
+                    conn.setEx(SECKILL_ORDER_STATUS_KEY + orderId, SECKILL_ORDER_STATUS_TTL, value(status, userIds.get(orderId))));
+            conn.publish(SECKILL_ORDER_STATUS_CHANNEL, body.toString());
+            return null;
+        });
+    }
+
+    // 重新排队，比如死信消息重新投递
+    public void requeue(Long orderId, Long userId) {
+        stringRedisTemplate.opsForValue().set(SECKILL_ORDER_STATUS_KEY + orderId, value(QUEUED, userId),
+                SECKILL_ORDER_STATUS_TTL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 查询订单状态，不是这个用户的订单和不存在一样返回null
+     */
+    public String getStatus(Long orderId, Long userId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value == null) {
+            return null;
+        }
+        int i = value.lastIndexOf(':');
+        if (i < 0 || !value.substring(i + 1).equals(String.valueOf(userId))) {
+            return null;
+        }
+        return value.substring(0, i);
+    }
+
+    private static long clamp(long timeoutMs) {
+        return Math.min(Math.max(timeoutMs, 1), MAX_WAIT_MS);
+    }
+
+    /**
+     * 长轮询等待订单的最终状态
+     * 已经是最终状态就直接返回，否则挂起请求，直到状态变化或者超时，超时返回当前状态
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeoutMs) {
+        DeferredResult<Result> deferred = new DeferredResult<>(clamp(timeoutMs));
+        String status = getStatus(orderId, userId);
+        if (status == null) {
+            deferred.setResult(Result.fail("订单不存在或者状态已过期"));
+            return deferred;
+        }
+        if (!QUEUED.equals(status)) {
+            deferred.setResult(Result.ok(status));
+            return deferred;
+        }
+        Consumer<String> waiter = s -> deferred.setResult(Result.ok(s));
+        deferred.onTimeout(() -> deferred.setResult(Result.ok(QUEUED)));
+        deferred.onCompletion(() -> removeWaiter(orderId, waiter));
+        register(orderId, userId, waiter);
+        return deferred;
+    }
+
+    /**
+     * 通过SSE推送订单状态，先推送当前状态，变成最终状态后推送一次并结束
+     */
+    public SseEmitter subscribe(Long orderId, Long userId, long timeoutMs) {
+        SseEmitter emitter = new SseEmitter(clamp(timeoutMs));
+        String status = getStatus(orderId, userId);
+        if (status == null) {
+            emitter.completeWithError(new IllegalArgumentException("订单不存在或者状态已过期"));
+            return emitter;
+        }
+        if (!send(emitter, status) || !QUEUED.equals(status)) {
+            emitter.complete();
+            return emitter;
+        }
+        Consumer<String> waiter = s -> {
+            send(emitter, s);
+            emitter.complete();
+        };
+        emitter.onTimeout(emitter::complete);
+        emitter.onCompletion(() -> removeWaiter(orderId, waiter));
+        register(orderId, userId, waiter);
+        return emitter;
+    }
+
+    private boolean send(SseEmitter emitter, String status) {
+        try {
+            emitter.send(SseEmitter.event().name("status").data(status));
+            return true;
+        } catch (IOException e) {
+            // 客户端已经断开
+            return false;
+        }
+    }
+
+    private void register(Long orderId, Long userId, Consumer<String> waiter) {
+        waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet()).add(waiter);
+        // 注册之前状态可能已经变了，通知会错过，注册之后再查一次
+        String status = getStatus(orderId, userId);
+        if (status != null && !QUEUED.equals(status)) {
+            wakeUp(orderId, status);
+        }
+    }
+
+    private void removeWaiter(Long orderId, Consumer<String> waiter) {
+        waiters.computeIfPresent(orderId, (k, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void wakeUp(Long orderId, String status) {
+        Set<Consumer<String>> set = waiters.remove(orderId);
+        if (set == null) {
+            return;
+        }
+        for (Consumer<String> waiter : set) {
+            try {
+                waiter.accept(status);
+            } catch (Exception e) {
+                log.debug("推送订单状态失败，orderId = {}", orderId, e);
+            }
+        }
+    }
+}
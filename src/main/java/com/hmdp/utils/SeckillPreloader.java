@@ -0,0 +1,263 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀数据预热
+ * redis重启或者被清空之后，从数据库中把还没结束的秒杀券的库存、元数据和已下单用户重新写回redis
+ * 启动时自动执行一次，只补redis中缺失的券；也可以通过接口强制全部重建
+ */
+@Slf4j
+@Component
+public class SeckillPreloader {
+
+    // 每页读取的订单数
+    private static final int ORDER_PAGE_SIZE = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillBuyerBitmap seckillBuyerBitmap;
+
+    @Resource
+    private VoucherOrderConsumerPool voucherOrderConsumerPool;
+
+    // 秒杀结束后已下单用户的位图再保留多久
+    @Value("${hmdp.seckill.buyers-retain-ms:86400000}")
+    private long buyersRetainMs;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void preloadOnStartup() {
+        try {
+            migrateUntaggedKeys();
+            preload(false);
+        } catch (Exception e) {
+            log.error("秒杀数据预热失败", e);
+        }
+    }
+
+    /**
+     * 升级前秒杀脚本只用到了两个key：库存 seckill:stock:<voucherId> 和已下单用户的set seckill:order:<voucherId>，
+     * 新代码只认带 {voucherId} hash tag 的key，这里把没结束（或者位图还在保留期内）的券的旧key搬过去：
+     * 1.库存用DUMP/RESTORE搬过去，新key已经存在时以新key为准
+     * 2.已下单用户的set分批写入位图，保证一人一单
+     * 旧key和新key不在同一个slot上，只能一个个key搬，所以要在老版本的实例全部停掉之后再启动新版本
+     */
+    private void migrateUntaggedKeys() {
+        long retainFrom = System.currentTimeMillis() - buyersRetainMs;
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.ofInstant(Instant.ofEpochMilli(retainFrom), ZoneId.systemDefault())).list();
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            Long voucherId = seckillVoucher.getVoucherId();
+            moveKey(SECKILL_STOCK_KEY + voucherId, SeckillKeys.stock(voucherId));
+            migrateBuyerSet(seckillVoucher);
+        }
+    }
+
+    // 把旧key搬到新key上，新key已经存在时直接删除旧key
+    private void moveKey(String oldKey, String newKey) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] from = bytes(oldKey);
+            byte[] to = bytes(newKey);
+            byte[] value = connection.dump(from);
+            if (value == null) {
+                return null;
+            }
+            if (Boolean.TRUE.equals(connection.exists(to))) {
+                log.warn("新key已经存在，丢弃旧key，oldKey = {}, newKey = {}", oldKey, newKey);
+            } else {
+                Long ttl = connection.pTtl(from);
+                connection.restore(to, ttl == null || ttl < 0 ? 0 : ttl, value);
+                log.info("迁移秒杀key，{} -> {}", oldKey, newKey);
+            }
+            connection.del(from);
+            return null;
+        });
+    }
+
+    // 用SSCAN分批读取旧的已下单用户set，写入位图后删除
+    private void migrateBuyerSet(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        String key = SECKILL_ORDER_KEY + voucherId;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return;
+        }
+        long expireAt = seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + buyersRetainMs;
+        long total = 0;
+        List<Long> userIds = new ArrayList<>(ORDER_PAGE_SIZE);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, ScanOptions.scanOptions().count(ORDER_PAGE_SIZE).build())) {
+            while (cursor.hasNext()) {
+                userIds.add(Long.valueOf(cursor.next()));
+                if (userIds.size() == ORDER_PAGE_SIZE) {
+                    seckillBuyerBitmap.addAll(voucherId, userIds, expireAt);
+                    total += userIds.size();
+                    userIds.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!userIds.isEmpty()) {
+            seckillBuyerBitmap.addAll(voucherId, userIds, expireAt);
+            total += userIds.size();
+        }
+        stringRedisTemplate.delete(key);
+        log.info("迁移已下单用户，{} -> 位图，voucherId = {}, buyers = {}", key, voucherId, total);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 重建秒杀券在redis中的数据
+     * 用数据库中的库存覆盖redis中的库存时，订单stream中还没写入数据库的订单和实例租走的库存会被算回库存，
+     * 所以这样的券不重建，放在skipped中返回，等订单处理完、租约还回来之后再重建
+     * 非强制重建时redis中已有库存的券（比如从升级前的key迁移过来的）只补元数据，不覆盖库存
+     * @param force true:重建所有未结束的券，false:只重建redis中缺失的券
+     * @return 重建的券数量、用户数量、跳过的券以及耗时
+     */
+    public Map<String, Object> preload(boolean force) {
+        long begin = System.currentTimeMillis();
+        // 查询还没结束的秒杀券
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now()).list();
+        List<Long> skipped = new ArrayList<>();
+        seckillVouchers.removeIf(sv -> {
+            Long voucherId = sv.getVoucherId();
+            if (!force) {
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.meta(voucherId)))) {
+                    return true;
+                }
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.stock(voucherId)))) {
+                    // 库存不会被覆盖，不用等订单处理完
+                    return false;
+                }
+            }
+            if (hasUnsettledStock(voucherId)) {
+                skipped.add(voucherId);
+                return true;
+            }
+            return false;
+        });
+        Map<Long, Voucher> vouchers = seckillVouchers.isEmpty() ? Collections.emptyMap()
+                : voucherService.listByIds(seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()))
+                .stream().collect(Collectors.toMap(Voucher::getId, Function.identity()));
+
+        long buyers = 0;
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            Voucher voucher = vouchers.get(seckillVoucher.getVoucherId());
+            if (voucher == null) {
+                continue;
+            }
+            if (force) {
+                voucherService.saveSeckillVoucher2Redis(seckillVoucher, voucher.getStatus());
+                buyers += preloadBuyers(seckillVoucher);
+            } else {
+                buyers += preloadVoucher(seckillVoucher, voucher.getStatus());
+            }
+        }
+
+        long cost = System.currentTimeMillis() - begin;
+        log.info("秒杀数据预热完成，vouchers = {}, buyers = {}, skipped = {}, cost = {}ms", seckillVouchers.size(), buyers, skipped, cost);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("vouchers", seckillVouchers.size());
+        report.put("buyers", buyers);
+        report.put("skipped", skipped);
+        report.put("costMs", cost);
+        return report;
+    }
+
+    /**
+     * redis中的库存是否还有没算进数据库的部分：
+     * 1.订单stream中有还没投递给消费者组的消息，或者投递了还没确认的消息；
+     *   升级前所有券共用的stream.orders分不出是哪张券的，只要还没处理完就都算
+     * 2.有实例租走了库存还没还回来
+     */
+    private boolean hasUnsettledStock(Long voucherId) {
+        if (voucherOrderConsumerPool.hasUnconsumedMessages(SeckillKeys.orderStream(voucherId))
+                || voucherOrderConsumerPool.hasUnconsumedMessages(SECKILL_ORDER_STREAM)) {
+            return true;
+        }
+        for (Object leased : stringRedisTemplate.opsForHash().values(SeckillKeys.lease(voucherId))) {
+            if (Long.parseLong(leased.toString()) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把一张秒杀券的库存、元数据和已下单用户写入redis
+     * redis中已经有库存时只写元数据，已经扣减过的库存不能用数据库中的库存覆盖
+     * @return 已下单用户数
+     */
+    public long preloadVoucher(SeckillVoucher seckillVoucher, Integer status) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.stock(seckillVoucher.getVoucherId())))) {
+            voucherService.saveSeckillMeta2Redis(seckillVoucher, status);
+        } else {
+            voucherService.saveSeckillVoucher2Redis(seckillVoucher, status);
+        }
+        return preloadBuyers(seckillVoucher);
+    }
+
+    // 按id分页读取已下单用户，每页批量写入位图
+    private long preloadBuyers(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        long expireAt = seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + buyersRetainMs;
+        long total = 0;
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query().select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + ORDER_PAGE_SIZE).list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            seckillBuyerBitmap.addAll(voucherId,
+                    orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList()), expireAt);
+            total += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+            if (orders.size() < ORDER_PAGE_SIZE) {
+                break;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券的定时调度
+ * 开始前lead-ms：把库存、元数据、已下单用户写入redis，并预热店铺的优惠券列表缓存
+ * 结束时：冻结秒杀券（元数据和数据库的状态改成3过期），归还本实例的库存租约，redis中的秒杀数据在retain-ms之后过期
+ * 每次调度先抢分布式锁，同一时间只有一个实例在执行；每张券当前的阶段记录在 seckill:phase:{voucherId} 中，
+ * 每个阶段只会执行一次，换了实例执行也不会重复
+ */
+@Slf4j
+@Component
+public class SeckillScheduler {
+
+    private static final String PHASE_WARM = "warm";
+    private static final String PHASE_CLOSED = "closed";
+    // 过期的券在元数据中的状态，和tb_voucher.status一致
+    private static final int STATUS_EXPIRED = 3;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private SeckillPreloader seckillPreloader;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Value("${hmdp.seckill.scheduler.enabled:true}")
+    private boolean enabled;
+
+    // 秒杀开始前多久预热
+    @Value("${hmdp.seckill.scheduler.lead-ms:300000}")
+    private long leadMs;
+
+    // 多久检查一次
+    @Value("${hmdp.seckill.scheduler.interval-ms:1000}")
+    private long intervalMs;
+
+    // 多久从数据库刷新一次需要调度的券
+    @Value("${hmdp.seckill.scheduler.refresh-ms:60000}")
+    private long refreshMs;
+
+    // 秒杀结束后redis中的数据再保留多久，让还在处理的订单和状态查询能用
+    @Value("${hmdp.seckill.scheduler.retain-ms:3600000}")
+    private long retainMs;
+
+    // 调度停掉一段时间再启动时，结束了多久以内的券还要补做收尾
+    @Value("${hmdp.seckill.scheduler.catch-up-ms:86400000}")
+    private long catchUpMs;
+
+    // 近期需要调度的券，定时从数据库刷新
+    private volatile List<SeckillVoucher> scheduledVouchers = Collections.emptyList();
+    private long lastRefresh;
+
+    private ScheduledExecutorService schedulerExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        schedulerExecutor = Executors.newSingleThreadScheduledExecutor();
+        schedulerExecutor.scheduleWithFixedDelay(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (schedulerExecutor != null) {
+            schedulerExecutor.shutdownNow();
+        }
+    }
+
+    private void tick() {
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_SCHEDULER_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (now - lastRefresh >= refreshMs) {
+                refresh(now);
+                lastRefresh = now;
+            }
+            for (SeckillVoucher seckillVoucher : scheduledVouchers) {
+                try {
+                    schedule(seckillVoucher, now);
+                } catch (Exception e) {
+                    log.error("秒杀券调度异常，voucherId = {}", seckillVoucher.getVoucherId(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀调度异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 查询下一次刷新之前要开始的券，以及最近结束的券
+    private void refresh(long now) {
+        scheduledVouchers = new ArrayList<>(seckillVoucherService.query()
+                .le("begin_time", toLocalDateTime(now + leadMs + refreshMs))
+                .gt("end_time", toLocalDateTime(now - catchUpMs))
+                .list());
+    }
+
+    private void schedule(SeckillVoucher seckillVoucher, long now) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        long begin = toEpochMilli(seckillVoucher.getBeginTime());
+        long end = toEpochMilli(seckillVoucher.getEndTime());
+        String phaseKey = SECKILL_PHASE_KEY + voucherId;
+        String phase = stringRedisTemplate.opsForValue().get(phaseKey);
+        if (PHASE_CLOSED.equals(phase)) {
+            return;
+        }
+        if (now > end) {
+            close(seckillVoucher);
+            stringRedisTemplate.opsForValue().set(phaseKey, PHASE_CLOSED, catchUpMs + retainMs, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (phase == null && now >= begin - leadMs) {
+            warmUp(seckillVoucher);
+            stringRedisTemplate.opsForValue().set(phaseKey, PHASE_WARM, end - now + catchUpMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 预热：秒杀数据写入redis，店铺的优惠券列表写入缓存
+    private void warmUp(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Voucher voucher = voucherService.getById(voucherId);
+        if (voucher == null) {
+            return;
+        }
+        // 新增秒杀券时已经写入过redis了，不要覆盖掉已经扣减的库存
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.meta(voucherId)))) {
+            seckillPreloader.preloadVoucher(seckillVoucher, voucher.getStatus());
+        }
+        voucherService.cacheVoucherOfShop(voucher.getShopId());
+        log.info("秒杀券预热完成，voucherId = {}", voucherId);
+    }
+
+    // 收尾：冻结秒杀券，归还库存租约，redis中的秒杀数据设置过期时间
+    private void close(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        // 1.冻结，之后秒杀脚本直接返回已结束
+        String metaKey = SeckillKeys.meta(voucherId);
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(metaKey))) {
+            stringRedisTemplate.opsForHash().put(metaKey, "status", String.valueOf(STATUS_EXPIRED));
+        }
+        voucherService.update().set("status", STATUS_EXPIRED).eq("id", voucherId).update();
+        // 2.归还本实例的库存租约，其他实例在秒杀结束后会自己归还
+        seckillStockLease.returnAll(voucherId);
+        // 3.redis中的秒杀数据过一段时间再删除，已下单用户的位图有自己的过期时间
+        List<String> keys = new ArrayList<>();
+        keys.add(metaKey);
+        keys.add(SeckillKeys.stock(voucherId));
+        keys.add(SeckillKeys.soldOut(voucherId));
+        keys.add(SeckillKeys.lease(voucherId));
+        keys.add(SeckillKeys.leaseHeartbeat(voucherId));
+        for (String key : keys) {
+            stringRedisTemplate.expire(key, retainMs, TimeUnit.MILLISECONDS);
+        }
+        // 4.店铺的优惠券列表中去掉这张券
+        Voucher voucher = voucherService.getById(voucherId);
+        if (voucher != null) {
+            voucherService.evictVoucherOfShop(voucher.getShopId());
+        }
+        log.info("秒杀券已结束，voucherId = {}", voucherId);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地的售罄标记
+ * 某个实例发现券卖完了就通过redis的发布订阅通知所有实例，之后的请求在本地直接返回，不再访问redis
+ * 消息内容是优惠券id，前面带 - 表示清除售罄标记（比如重新补了库存）
+ * 发布订阅的消息可能丢失（比如实例和redis的连接断开过），所以定时用redis中的 seckill:soldout:{voucherId} 校对一次，
+ * redis中已经没有售罄标记的券从本地去掉；券结束之后也从本地去掉
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillActiveVouchers seckillActiveVouchers;
+
+    // 多久和redis校对一次，也是清除消息丢失时最多误拒的时间
+    @Value("${hmdp.seckill.sold-out-sync-ms:5000}")
+    private long syncMs;
+
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService syncExecutor;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (body.startsWith("-")) {
+                soldOutVouchers.remove(Long.valueOf(body.substring(1)));
+            } else {
+                soldOutVouchers.add(Long.valueOf(body));
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        seckillActiveVouchers.onRetire(soldOutVouchers::remove);
+        syncExecutor = Executors.newSingleThreadScheduledExecutor();
+        syncExecutor.scheduleWithFixedDelay(this::sync, syncMs, syncMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        syncExecutor.shutdownNow();
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.contains(voucherId);
+    }
+
+    // 标记售罄并通知其他实例
+    public void markSoldOut(Long voucherId) {
+        // 已经标记过就不用重复广播了
+        if (soldOutVouchers.add(voucherId)) {
+            log.debug("优惠券已售罄，voucherId = {}", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    // 清除售罄标记并通知其他实例
+    public void clear(Long voucherId) {
+        soldOutVouchers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    // 本地标记售罄的券逐个检查redis中的售罄标记，一次pipeline查完
+    private void sync() {
+        try {
+            List<Long> voucherIds = new ArrayList<>(soldOutVouchers);
+            if (voucherIds.isEmpty()) {
+                return;
+            }
+            List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                voucherIds.forEach(id -> conn.exists(SeckillKeys.soldOut(id)));
+                return null;
+            });
+            for (int i = 0; i < voucherIds.size(); i++) {
+                if (!Boolean.TRUE.equals(exists.get(i))) {
+                    log.info("redis中已经没有售罄标记，清除本地标记，voucherId = {}", voucherIds.get(i));
+                    soldOutVouchers.remove(voucherIds.get(i));
+                }
+            }
+        } catch (Exception e) {
+            log.error("校对售罄标记异常", e);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_REBALANCE_CHANNEL;
+
+/**
+ * 秒杀库存租约
+ * 每个实例一次从中央库存 seckill:stock:{voucherId} 租用一块库存放在本地，下单时在本地原子扣减，
+ * 一块用完了才访问一次中央库存，seckill.lua做一人一单的检查，不再扣减中央库存
+ * 每个实例手里还没卖出去的库存记录在 seckill:lease:{voucherId} 中，seckill.lua每卖出一个就把本实例的数量减1，
+ * 所以这里的数量是准确的；所有实例都卖完了才写入售罄标记
+ * 某个实例租不到库存而其他实例手里还有时，通过发布订阅请其他实例把手里的一半还回中央库存
+ * 秒杀结束或者实例关闭时把手里剩下的库存全部还回去
+ * 每个实例每秒在 seckill:lease:heartbeat:{voucherId} 中写一次心跳，实例宕机或者重启换了实例id之后心跳不再更新，
+ * 其他实例租不到库存时把心跳超过heartbeat-ttl-ms的实例手里的库存收回中央库存；
+ * 被收回的实例如果还活着，seckill.lua发现它的租约数量不够了会拒绝，本地剩下的库存作废，不会超卖
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    // 本地扣到了库存
+    public static final int TAKEN = 0;
+    // 暂时没有库存，其他实例手里还有
+    public static final int EMPTY = 1;
+    // 全部卖完了
+    public static final int SOLD_OUT = 2;
+
+    // seckill.lua返回的租约已被收回
+    public static final int REVOKED = 6;
+
+    private static final DefaultRedisScript<List> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(List.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("stock_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private RedisClusterAsyncCommands<String, String> asyncRedisCommands;
+
+    @Resource
+    private ExecutorService seckillCallbackExecutor;
+
+    @Value("${spring.application.name:hmdp}")
+    private String applicationName;
+
+    @Value("${hmdp.seckill.stock-lease.enabled:false}")
+    private boolean enabled;
+
+    // 每次租用的库存数
+    @Value("${hmdp.seckill.stock-lease.chunk:50}")
+    private long chunk;
+
+    // 租不到库存之后多久再去租
+    @Value("${hmdp.seckill.stock-lease.retry-ms:100}")
+    private long retryMs;
+
+    // 心跳超过这么久没有更新的实例，手里的库存会被其他实例收回
+    @Value("${hmdp.seckill.stock-lease.heartbeat-ttl-ms:10000}")
+    private long heartbeatTtlMs;
+
+    // 实例id：应用名-主机-进程号
+    private String instanceId;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService leaseExecutor;
+
+    // 本实例某张券的租约
+    private static class Lease {
+        // 手里还没卖出去的库存
+        final AtomicLong tokens = new AtomicLong();
+        // 秒杀结束时间
+        volatile long endTime;
+        // 这个时间之前租不到库存，直接返回
+        volatile long dryUntil;
+        // 正在进行的租用
+        CompletableFuture<Integer> leasing;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        instanceId = applicationName + "-" + NetUtil.getLocalhostStr() + "-" + RuntimeUtil.getPid();
+        // 其他实例租不到库存时，把手里的库存还一半回去
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.indexOf(':');
+            if (i > 0 && !instanceId.equals(body.substring(i + 1))) {
+                rebalance(Long.valueOf(body.substring(0, i)));
+            }
+        }, new ChannelTopic(SECKILL_LEASE_REBALANCE_CHANNEL));
+        leaseExecutor = Executors.newSingleThreadScheduledExecutor();
+        leaseExecutor.scheduleWithFixedDelay(this::checkLeases, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (leaseExecutor == null) {
+            return;
+        }
+        leaseExecutor.shutdownNow();
+        // 实例关闭，手里的库存全部还回去
+        for (Long voucherId : leases.keySet()) {
+            returnAll(voucherId);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // seckill.lua按实例id扣减租约中的数量
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * 在本地扣减一个库存，本地没有了就用lettuce的异步命令去中央库存租用一块，不阻塞调用线程
+     * 同一张券同时只有一个请求去租用，其他请求等它租完再从本地扣
+     * @return TAKEN、EMPTY或SOLD_OUT
+     */
+    public CompletableFuture<Integer> tryTakeAsync(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        if (take(lease)) {
+            return CompletableFuture.completedFuture(TAKEN);
+        }
+        CompletableFuture<Integer> leasing;
+        boolean leader = false;
+        // 锁里面只有本地的判断，不访问redis
+        synchronized (lease) {
+            if (take(lease)) {
+                return CompletableFuture.completedFuture(TAKEN);
+            }
+            if (System.currentTimeMillis() < lease.dryUntil) {
+                return CompletableFuture.completedFuture(EMPTY);
+            }
+            if (lease.leasing == null) {
+                lease.leasing = new CompletableFuture<>();
+                leader = true;
+            }
+            leasing = lease.leasing;
+        }
+        if (leader) {
+            requestChunk(voucherId, lease, leasing);
+        }
+        // 租完之后重新从本地扣，被其他请求扣完了就再租一次
+        return leasing.thenComposeAsync(state -> state == SOLD_OUT
+                ? CompletableFuture.completedFuture(SOLD_OUT) : tryTakeAsync(voucherId), seckillCallbackExecutor);
+    }
+
+    // 去中央库存租用一块，租到的放进本地，完成leasing：SOLD_OUT表示全部卖完了，其他情况由等待的请求重新扣减
+    private void requestChunk(Long voucherId, Lease lease, CompletableFuture<Integer> leasing) {
+        String[] keys = {SeckillKeys.stock(voucherId), SeckillKeys.lease(voucherId), SeckillKeys.meta(voucherId),
+                SeckillKeys.soldOut(voucherId), SeckillKeys.leaseHeartbeat(voucherId)};
+        AsyncRedisSupport.<List<Object>>eval(asyncRedisCommands, LEASE_SCRIPT, ScriptOutputType.MULTI, keys,
+                        instanceId, String.valueOf(chunk), String.valueOf(System.currentTimeMillis()), String.valueOf(heartbeatTtlMs))
+                .whenCompleteAsync((result, e) -> {
+                    int state = EMPTY;
+                    try {
+                        if (e != null) {
+                            // 这次当作租不到
+                            lease.dryUntil = System.currentTimeMillis() + retryMs;
+                            log.error("租用库存失败，voucherId = {}", voucherId, e);
+                            return;
+                        }
+                        long granted = (Long) result.get(0);
+                        lease.endTime = (Long) result.get(1);
+                        if (granted > 0) {
+                            lease.tokens.addAndGet(granted);
+                            state = TAKEN;
+                        } else if (granted < 0) {
+                            state = SOLD_OUT;
+                        } else {
+                            // 中央库存没有了，请其他实例还一些回来，过一会再来租
+                            lease.dryUntil = System.currentTimeMillis() + retryMs;
+                            stringRedisTemplate.convertAndSend(SECKILL_LEASE_REBALANCE_CHANNEL, voucherId + ":" + instanceId);
+                        }
+                    } finally {
+                        synchronized (lease) {
+                            if (lease.leasing == leasing) {
+                                lease.leasing = null;
+                            }
+                        }
+                        leasing.complete(state);
+                    }
+                }, seckillCallbackExecutor);
+    }
+
+    /**
+     * 秒杀脚本执行完之后结算本地扣减的库存
+     * @param result seckill.lua的结果，脚本执行失败传-1
+     */
+    public void settle(Long voucherId, int result) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null || result == 0) {
+            // 卖出去了，seckill.lua已经扣减了租约中的数量
+            return;
+        }
+        if (result == REVOKED) {
+            // 租约已经被收回，本地剩下的库存作废，下次重新去租
+            lease.tokens.set(0);
+            return;
+        }
+        // 没卖出去，还回本地；脚本执行失败时不知道有没有卖出去，也还回本地，
+        // 多出来的一个卖的时候seckill.lua发现租约数量不够会拒绝，不会超卖
+        lease.tokens.incrementAndGet();
+    }
+
+    /**
+     * 把某张券手里的库存全部还回去，秒杀结束时调用
+     */
+    public void returnAll(Long voucherId) {
+        Lease lease = leases.remove(voucherId);
+        if (lease != null) {
+            lease.tokens.set(0);
+            // 按redis中租约记录的数量全部归还，并删除本实例的租约和心跳
+            giveBack(voucherId, lease, -1);
+        }
+    }
+
+    // 手里的库存还一半回去
+    private void rebalance(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            return;
+        }
+        long tokens;
+        long amount;
+        do {
+            tokens = lease.tokens.get();
+            amount = (tokens + 1) / 2;
+        } while (amount > 0 && !lease.tokens.compareAndSet(tokens, tokens - amount));
+        if (amount > 0) {
+            giveBack(voucherId, lease, amount);
+        }
+    }
+
+    // 定时写入心跳，秒杀已经结束的券把库存全部还回去
+    private void checkLeases() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            try {
+                Lease lease = entry.getValue();
+                if (lease.endTime > 0 && now > lease.endTime) {
+                    returnAll(entry.getKey());
+                } else {
+                    stringRedisTemplate.opsForHash().put(SeckillKeys.leaseHeartbeat(entry.getKey()), instanceId, String.valueOf(now));
+                }
+            } catch (Exception e) {
+                log.error("检查库存租约异常，voucherId = {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    // 归还库存，amount为-1时归还redis中记录的全部数量
+    private void giveBack(Long voucherId, Lease lease, long amount) {
+        try {
+            stringRedisTemplate.execute(RETURN_SCRIPT,
+                    Arrays.asList(SeckillKeys.lease(voucherId), SeckillKeys.stock(voucherId), SeckillKeys.leaseHeartbeat(voucherId)),
+                    instanceId, String.valueOf(amount));
+        } catch (Exception e) {
+            // 还不回去就留在本地继续卖
+            if (amount > 0) {
+                lease.tokens.addAndGet(amount);
+            }
+            log.error("归还库存租约失败，voucherId = {}", voucherId, e);
+        }
+    }
+
+    private static boolean take(Lease lease) {
+        long tokens;
+        do {
+            tokens = lease.tokens.get();
+            if (tokens <= 0) {
+                return false;
+            }
+        } while (!lease.tokens.compareAndSet(tokens, tokens - 1));
+        return true;
+    }
+}
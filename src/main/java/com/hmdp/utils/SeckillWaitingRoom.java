@@ -0,0 +1,292 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀的虚拟等候室
+ * 1.用户先领取排队号：INCR seckill:queue:{voucherId}，排队号带签名，绑定用户和券
+ * 2.一个实例（抢到锁的）每隔wave-interval-ms按订单消费者实际的处理速度放行一波，
+ *   把 seckill:queue:admitted:{voucherId} 往后推，排在它前面的号都可以进场
+ * 3.用户轮询到自己被放行后拿到带签名和过期时间的入场令牌，秒杀接口在本地校验签名，不访问redis
+ * 这样秒杀开始时的瞬时流量会被摊平成和下单处理能力相当的平滑流量
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    // 签名的密钥，所有实例要一致；没有默认值，开启等候室时必须显式配置，否则任何人都能伪造令牌
+    @Value("${hmdp.seckill.waiting-room.secret:}")
+    private String secret;
+
+    // 多久放行一波
+    @Value("${hmdp.seckill.waiting-room.wave-interval-ms:1000}")
+    private long waveIntervalMs;
+
+    // 每波至少放行的人数
+    @Value("${hmdp.seckill.waiting-room.min-wave:50}")
+    private long minWave;
+
+    // 每波放行的人数是上一个间隔内订单处理数的几倍
+    @Value("${hmdp.seckill.waiting-room.wave-factor:1.0}")
+    private double waveFactor;
+
+    // 入场令牌的有效期
+    @Value("${hmdp.seckill.waiting-room.token-ttl-ms:30000}")
+    private long tokenTtlMs;
+
+    // 轮询时放行位置在本地缓存多久，排队的人再多也只有这么多次redis读
+    @Value("${hmdp.seckill.waiting-room.admitted-cache-ms:200}")
+    private long admittedCacheMs;
+
+    // 排队号和放行位置只保留这么久
+    private static final long QUEUE_TTL_HOURS = 24;
+
+    private ThreadLocal<Mac> mac;
+
+    // 本地缓存的放行位置：{位置, 过期时间}
+    private final Map<Long, long[]> admittedCache = new ConcurrentHashMap<>();
+
+    // 上一次看到的订单处理总数
+    private long lastPersisted = -1;
+
+    private ScheduledExecutorService waveExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("开启秒杀等候室时必须配置签名密钥 hmdp.seckill.waiting-room.secret");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(key);
+                return m;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waveExecutor = Executors.newSingleThreadScheduledExecutor();
+        waveExecutor.scheduleWithFixedDelay(this::advanceWaves, waveIntervalMs, waveIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (waveExecutor != null) {
+            waveExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 领取排队号，同一个用户重复领取返回同一个排队号，一个人只占一个位置
+     * @return 排队号和签名后的排队凭证
+     */
+    public Map<String, Object> enqueue(Long voucherId, Long userId) {
+        String usersKey = SECKILL_QUEUE_USERS_KEY + voucherId;
+        String user = userId.toString();
+        // 已经排过队了
+        Double existing = stringRedisTemplate.opsForZSet().score(usersKey, user);
+        long position;
+        if (existing != null) {
+            position = existing.longValue();
+        } else {
+            String queueKey = SECKILL_QUEUE_KEY + voucherId;
+            Long issued = stringRedisTemplate.opsForValue().increment(queueKey);
+            position = issued == null ? 0 : issued;
+            if (position == 1) {
+                // 第一个排队的人，登记这张券并设置过期时间
+                stringRedisTemplate.expire(queueKey, QUEUE_TTL_HOURS, TimeUnit.HOURS);
+                stringRedisTemplate.opsForSet().add(SECKILL_QUEUE_ACTIVE_KEY, voucherId.toString());
+            }
+            // ZADD NX，同一个用户并发领取时只有一个排队号生效，另一个号空着，放行时多算一个人，不影响正确性
+            // spring data redis 2.3的zAdd还不支持NX，直接执行命令
+            String score = String.valueOf(position);
+            Object added = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    ((StringRedisConnection) connection).execute("ZADD", usersKey, "NX", score, user));
+            if (!Long.valueOf(1).equals(added)) {
+                Double winner = stringRedisTemplate.opsForZSet().score(usersKey, user);
+                position = winner == null ? position : winner.longValue();
+            } else {
+                stringRedisTemplate.expire(usersKey, QUEUE_TTL_HOURS, TimeUnit.HOURS);
+            }
+        }
+        Map<String, Object> ticket = new LinkedHashMap<>();
+        ticket.put("position", position);
+        ticket.put("ticket", position + "." + sign("t:" + voucherId + ":" + userId + ":" + position));
+        return ticket;
+    }
+
+    /**
+     * 查询排队进度，已经被放行就发放入场令牌
+     * @return 前面还有多少人；被放行时带上入场令牌
+     */
+    public Map<String, Object> poll(Long voucherId, Long userId, String ticket) {
+        long position = verifyTicket(voucherId, userId, ticket);
+        if (position <= 0) {
+            return null;
+        }
+        long admitted = admitted(voucherId);
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("position", position);
+        progress.put("ahead", Math.max(position - admitted, 0));
+        if (position <= admitted) {
+            long expireAt = System.currentTimeMillis() + tokenTtlMs;
+            progress.put("token", expireAt + "." + sign("a:" + voucherId + ":" + userId + ":" + expireAt));
+        }
+        return progress;
+    }
+
+    /**
+     * 校验入场令牌，只做本地的签名计算
+     */
+    public boolean verifyToken(Long voucherId, Long userId, String token) {
+        if (StrUtil.isBlank(token)) {
+            return false;
+        }
+        int i = token.indexOf('.');
+        if (i <= 0) {
+            return false;
+        }
+        long expireAt;
+        try {
+            expireAt = Long.parseLong(token.substring(0, i));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            return false;
+        }
+        return signEquals(token.substring(i + 1), "a:" + voucherId + ":" + userId + ":" + expireAt);
+    }
+
+    // 校验排队凭证，返回排队号，不合法返回0
+    private long verifyTicket(Long voucherId, Long userId, String ticket) {
+        if (StrUtil.isBlank(ticket)) {
+            return 0;
+        }
+        int i = ticket.indexOf('.');
+        if (i <= 0) {
+            return 0;
+        }
+        long position;
+        try {
+            position = Long.parseLong(ticket.substring(0, i));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        return signEquals(ticket.substring(i + 1), "t:" + voucherId + ":" + userId + ":" + position) ? position : 0;
+    }
+
+    // 放行位置，本地缓存一小段时间
+    private long admitted(Long voucherId) {
+        long now = System.currentTimeMillis();
+        long[] cached = admittedCache.get(voucherId);
+        if (cached != null && cached[1] > now) {
+            return cached[0];
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_QUEUE_ADMITTED_KEY + voucherId);
+        long admitted = value == null ? 0 : Long.parseLong(value);
+        admittedCache.put(voucherId, new long[]{admitted, now + admittedCacheMs});
+        return admitted;
+    }
+
+    // 按上一个间隔内处理的订单数放行下一波，所有排队的券平分
+    private void advanceWaves() {
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_QUEUE_KEY);
+        if (!lock.tryLock()) {
+            // 换成别的实例在放行了，重新开始统计
+            lastPersisted = -1;
+            return;
+        }
+        try {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_PERSISTED_KEY);
+            long persisted = value == null ? 0 : Long.parseLong(value);
+            long throughput = lastPersisted < 0 ? 0 : Math.max(persisted - lastPersisted, 0);
+            lastPersisted = persisted;
+            Set<String> active = stringRedisTemplate.opsForSet().members(SECKILL_QUEUE_ACTIVE_KEY);
+            if (active == null || active.isEmpty()) {
+                return;
+            }
+            long wave = Math.max(minWave, (long) (throughput * waveFactor / active.size()));
+            for (String voucherId : active) {
+                advance(voucherId, wave);
+            }
+        } catch (Exception e) {
+            log.error("等候室放行异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void advance(String voucherId, long wave) {
+        String issuedValue = stringRedisTemplate.opsForValue().get(SECKILL_QUEUE_KEY + voucherId);
+        if (issuedValue == null) {
+            // 排队号已经过期了
+            stringRedisTemplate.opsForSet().remove(SECKILL_QUEUE_ACTIVE_KEY, voucherId);
+            return;
+        }
+        long issued = Long.parseLong(issuedValue);
+        String admittedKey = SECKILL_QUEUE_ADMITTED_KEY + voucherId;
+        String admittedValue = stringRedisTemplate.opsForValue().get(admittedKey);
+        long admitted = admittedValue == null ? 0 : Long.parseLong(admittedValue);
+        // 已经卖完了，剩下的人全部放行，让他们尽快拿到库存不足的结果
+        boolean soldOut = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SeckillKeys.soldOut(Long.valueOf(voucherId))));
+        long next = soldOut ? issued : Math.min(issued, admitted + wave);
+        if (next > admitted) {
+            stringRedisTemplate.opsForValue().set(admittedKey, String.valueOf(next), QUEUE_TTL_HOURS, TimeUnit.HOURS);
+        }
+    }
+
+    private String sign(String data) {
+        return HexUtil.encodeHexStr(mac.get().doFinal(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // 用常量时间比较签名
+    private boolean signEquals(String signature, String data) {
+        return MessageDigest.isEqual(signature.getBytes(StandardCharsets.UTF_8),
+                sign(data).getBytes(StandardCharsets.UTF_8));
+    }
+}
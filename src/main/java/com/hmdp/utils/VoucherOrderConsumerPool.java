@@ -0,0 +1,594 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单消费者池
+ * 每个实例的每个线程都用自己的消费者名称加入消费者组，扩容实例就能提高下单的吞吐量
+ * 定时把长时间没有确认的消息（比如实例宕机了）认领到自己名下重新处理
+ * 处理失败的消息按投递次数退避重试，超过重试次数转入死信队列stream.orders.dlq
+ * 订单消息按券分成多个stream：stream.orders:{voucherId}，和券的其他key在redis集群的同一个slot上，
+ * 所有分区登记在 stream.orders:index 中，消费者定时刷新分区列表，轮流读取每个分区
+ * 升级前的 stream.orders 还存在时也作为一个分区，直到里面的消息被处理完
+ */
+@Slf4j
+@Component
+public class VoucherOrderConsumerPool {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 注入的是代理对象，事务可以生效
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillOrderStatusNotifier orderStatusNotifier;
+
+    @Value("${spring.application.name:hmdp}")
+    private String applicationName;
+
+    // 本实例的消费线程数
+    @Value("${hmdp.seckill.order.consumers:1}")
+    private int consumers;
+
+    // 每批最多处理的订单消息数，为1时逐条处理
+    @Value("${hmdp.seckill.order.batch-size:1}")
+    private int batchSize;
+
+    // 凑满一批最多等待的时间
+    @Value("${hmdp.seckill.order.batch-max-wait-ms:200}")
+    private long batchMaxWaitMs;
+
+    // 多久检查一次其他消费者遗留的消息
+    @Value("${hmdp.seckill.order.reclaim-interval-ms:30000}")
+    private long reclaimIntervalMs;
+
+    // 消息超过这个时间没有确认就认为它的消费者已经挂了
+    @Value("${hmdp.seckill.order.reclaim-min-idle-ms:60000}")
+    private long reclaimMinIdleMs;
+
+    // 最多投递次数，超过之后转入死信队列
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private int maxDeliveries;
+
+    // 重试的初始退避时间，每失败一次翻倍
+    @Value("${hmdp.seckill.order.retry-backoff-ms:100}")
+    private long retryBackoffMs;
+
+    @Value("${hmdp.seckill.order.retry-backoff-max-ms:30000}")
+    private long retryBackoffMaxMs;
+
+    // 多久刷新一次订单stream的分区列表
+    @Value("${hmdp.seckill.order.partition-refresh-ms:1000}")
+    private long partitionRefreshMs;
+
+    // 所有分区都没有消息时，在一个分区上阻塞等待的时间
+    @Value("${hmdp.seckill.order.idle-block-ms:100}")
+    private long idleBlockMs;
+
+    public static final DefaultRedisScript<Long> GROUP_CREATE_SCRIPT;
+
+    static {
+        GROUP_CREATE_SCRIPT = new DefaultRedisScript<>();
+        GROUP_CREATE_SCRIPT.setLocation(new ClassPathResource("group_create.lua"));
+        GROUP_CREATE_SCRIPT.setResultType(Long.class);
+    }
+
+    public static final DefaultRedisScript<Long> CONSUMER_DELETE_SCRIPT;
+
+    static {
+        CONSUMER_DELETE_SCRIPT = new DefaultRedisScript<>();
+        CONSUMER_DELETE_SCRIPT.setLocation(new ClassPathResource("consumer_delete.lua"));
+        CONSUMER_DELETE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final List<VoucherOrderHandler> handlers = new ArrayList<>();
+
+    // 消息最后一次处理失败的原因，转入死信队列时一起写进去，key是 stream|消息id
+    // 消息被别的实例认领走或者处理完之后，在认领的时候清理
+    private final Map<String, String> lastErrors = new ConcurrentHashMap<>();
+
+    private ExecutorService consumerExecutor;
+
+    private ScheduledExecutorService reclaimExecutor;
+
+    // 当前所有的订单stream分区
+    private volatile List<String> partitions = Collections.emptyList();
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        refreshPartitions();
+        // 消费者名称：应用名-主机-进程号-线程序号，保证每个实例每个线程都不一样
+        String prefix = applicationName + "-" + NetUtil.getLocalhostStr() + "-" + RuntimeUtil.getPid();
+        consumerExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            VoucherOrderHandler handler = new VoucherOrderHandler(prefix + "-" + i);
+            handlers.add(handler);
+            consumerExecutor.submit(handler);
+        }
+        reclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+        reclaimExecutor.scheduleWithFixedDelay(this::reclaimIdleMessages, reclaimIntervalMs, reclaimIntervalMs, TimeUnit.MILLISECONDS);
+        reclaimExecutor.scheduleWithFixedDelay(this::refreshPartitions, partitionRefreshMs, partitionRefreshMs, TimeUnit.MILLISECONDS);
+        log.info("秒杀订单消费者启动，consumers = {}, prefix = {}", consumers, prefix);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        reclaimExecutor.shutdownNow();
+        consumerExecutor.shutdownNow();
+    }
+
+    /**
+     * 所有的订单stream分区：登记过的每张券的stream，加上升级前还没处理完的stream.orders
+     */
+    public List<String> listPartitions() {
+        List<String> streams = new ArrayList<>();
+        Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAM_INDEX_KEY);
+        if (voucherIds != null) {
+            for (String voucherId : voucherIds) {
+                streams.add(SeckillKeys.orderStream(Long.valueOf(voucherId)));
+            }
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_STREAM))) {
+            streams.add(SECKILL_ORDER_STREAM);
+        }
+        return streams;
+    }
+
+    /**
+     * 分区中是否还有没处理完的消息：还没投递给消费者组的，或者投递了还没确认的
+     */
+    public boolean hasUnconsumedMessages(String stream) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return false;
+        }
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName())).findFirst().orElse(null);
+        if (group == null) {
+            // 消费者组还没创建，stream中的消息都没处理
+            return info.streamLength() > 0;
+        }
+        return group.pendingCount() > 0 || !info.lastGeneratedId().equals(group.lastDeliveredId());
+    }
+
+    // 刷新分区列表，新发现的分区如果消费者组不存在就创建 XGROUP CREATE stream.orders:{voucherId} g1 0 MKSTREAM
+    private void refreshPartitions() {
+        try {
+            List<String> streams = listPartitions();
+            Set<String> known = new HashSet<>(partitions);
+            for (String stream : streams) {
+                if (!known.contains(stream)) {
+                    stringRedisTemplate.execute(GROUP_CREATE_SCRIPT, Collections.singletonList(stream), SECKILL_ORDER_GROUP);
+                }
+            }
+            partitions = streams;
+        } catch (Exception e) {
+            log.error("刷新订单stream分区异常", e);
+        }
+    }
+
+    // 认领挂掉的消费者遗留在pending-list中的消息 XPENDING + XCLAIM，再清理挂掉的消费者和用不到的失败原因
+    private void reclaimIdleMessages() {
+        int next = 0;
+        List<String> streams = partitions;
+        for (String stream : streams) {
+            try {
+                PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                        .pending(stream, SECKILL_ORDER_GROUP, Range.unbounded(), 100L);
+                for (PendingMessage pendingMessage : pendingMessages) {
+                    if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < reclaimMinIdleMs) {
+                        continue;
+                    }
+                    // 轮流分配给本实例的消费者
+                    VoucherOrderHandler handler = handlers.get(next++ % handlers.size());
+                    List<MapRecord<String, Object, Object>> claimed = claim(stream, SECKILL_ORDER_GROUP, handler.consumerName,
+                            Duration.ofMillis(reclaimMinIdleMs), pendingMessage.getId());
+                    if (claimed != null && !claimed.isEmpty()) {
+                        log.info("认领消息 {} {}，原消费者 {}，新消费者 {}", stream, pendingMessage.getIdAsString(),
+                                pendingMessage.getConsumerName(), handler.consumerName);
+                        handler.nextPendingCheck = 0;
+                    }
+                }
+                deleteDeadConsumers(stream);
+            } catch (Exception e) {
+                log.error("认领pending-list消息异常，stream = {}", stream, e);
+            }
+        }
+        cleanLastErrors(streams);
+    }
+
+    // 删除挂掉的消费者，消费者名称带进程号，不删除的话每次重启都会多一批
+    private void deleteDeadConsumers(String stream) {
+        List<String> args = new ArrayList<>();
+        args.add(SECKILL_ORDER_GROUP);
+        args.add(String.valueOf(reclaimMinIdleMs));
+        for (VoucherOrderHandler handler : handlers) {
+            args.add(handler.consumerName);
+        }
+        Long deleted = stringRedisTemplate.execute(CONSUMER_DELETE_SCRIPT, Collections.singletonList(stream), args.toArray());
+        if (deleted != null && deleted > 0) {
+            log.info("删除挂掉的消费者 {} 个，stream = {}", deleted, stream);
+        }
+    }
+
+    // 清理失败原因：消息已经不在本实例消费者的pending-list中了（别的实例认领走并处理完了），本实例不会再用到
+    private void cleanLastErrors(List<String> streams) {
+        Set<String> own = new HashSet<>();
+        for (VoucherOrderHandler handler : handlers) {
+            own.add(handler.consumerName);
+        }
+        for (String key : lastErrors.keySet()) {
+            int i = key.lastIndexOf('|');
+            String stream = key.substring(0, i);
+            String id = key.substring(i + 1);
+            if (!streams.contains(stream)) {
+                // 分区已经没有了
+                lastErrors.remove(key);
+                continue;
+            }
+            try {
+                PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                        .pending(stream, SECKILL_ORDER_GROUP, Range.closed(id, id), 1L);
+                if (pendingMessages.isEmpty() || !own.contains(pendingMessages.get(0).getConsumerName())) {
+                    lastErrors.remove(key);
+                }
+            } catch (Exception e) {
+                log.error("清理订单消息失败原因异常，stream = {}，id = {}", stream, id, e);
+            }
+        }
+    }
+
+    private static String errorKey(String stream, String id) {
+        return stream + "|" + id;
+    }
+
+    // XCLAIM，spring data redis 2.3的StreamOperations还没有claim，直接在连接上执行
+    private List<MapRecord<String, Object, Object>> claim(String key, String group, String consumerName,
+                                                          Duration minIdleTime, RecordId... recordIds) {
+        return stringRedisTemplate.execute((RedisCallback<List<MapRecord<String, Object, Object>>>) connection -> {
+            List<StringRecord> records = ((StringRedisConnection) connection).xClaim(key, group, consumerName, minIdleTime, recordIds);
+            List<MapRecord<String, Object, Object>> claimed = new ArrayList<>(records == null ? 0 : records.size());
+            if (records != null) {
+                for (StringRecord record : records) {
+                    claimed.add(MapRecord.<String, Object, Object>create(key, new HashMap<>(record.getValue())).withId(record.getId()));
+                }
+            }
+            return claimed;
+        });
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final String consumerName;
+
+        // 下一次检查pending-list的时间，有认领到的消息时由认领线程置为0，消费线程负责处理
+        private volatile long nextPendingCheck = 0;
+
+        // 下一次从哪个分区开始读，每个消费者从不同的分区开始轮流读
+        private int cursor;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 先处理到了重试时间的失败消息和刚认领到的消息
+                    if (System.currentTimeMillis() >= nextPendingCheck) {
+                        nextPendingCheck = handlePendingList();
+                    }
+                    // 批量模式：一次读取多条消息，合并成一次扣库存和一次多行insert
+                    if (batchSize > 1) {
+                        handleBatch();
+                        continue;
+                    }
+                    // 获取消息队列中的订单消息 XREADGROUP GROUP g1 consumerName COUNT 1 STREAMS stream.orders:{voucherId} >
+                    List<MapRecord<String, Object, Object>> records = readBatch(1, blockTimeout());
+                    // 判断订单信息是否为空
+                    if (records.isEmpty()) {
+                        // 为空则进行下一次循环到收到消息
+                        continue;
+                    }
+                    // 解析数据
+                    MapRecord<String, Object, Object> record = records.get(0);
+                    Map<Object, Object> value = record.getValue();
+                    // 转化成对象
+                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                    // 创建订单
+                    handleVoucherOrder(voucherOrder);
+                    // 确认消息 XACK
+                    stringRedisTemplate.opsForStream().acknowledge(record.getStream(), SECKILL_ORDER_GROUP, record.getId());
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常", e);
+                    // 异常消息留在pending-list中，退避一段时间之后再重试
+                    nextPendingCheck = System.currentTimeMillis() + retryBackoffMs;
+                }
+            }
+        }
+
+        // 批量处理订单消息
+        private void handleBatch() {
+            // 第一次阻塞等待消息，之后在batchMaxWait内尽量凑满一批
+            List<MapRecord<String, Object, Object>> records = readBatch(batchSize, blockTimeout());
+            if (records.isEmpty()) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + batchMaxWaitMs;
+            while (records.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                // BLOCK 0 代表无限等待，所以剩余时间不足1ms就直接结束
+                if (remaining < 1) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more = readBatch(batchSize - records.size(), Duration.ofMillis(remaining));
+                if (more.isEmpty()) {
+                    break;
+                }
+                records.addAll(more);
+            }
+            // 转化成订单对象，按优惠券分组
+            Map<Long, List<VoucherOrder>> ordersByVoucher = new LinkedHashMap<>();
+            Map<Long, List<MapRecord<String, Object, Object>>> recordsByVoucher = new LinkedHashMap<>();
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                ordersByVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+                recordsByVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(record);
+            }
+            // 每张券一个事务，一张券库存不够整批扣减只回滚这张券的订单
+            boolean failed = false;
+            for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+                List<VoucherOrder> voucherOrders = entry.getValue();
+                try {
+                    Set<Long> persisted = voucherOrderService.createVoucherOrderBatch(voucherOrders);
+                    publishStatus(voucherOrders, persisted);
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    // 这张券的消息留在pending-list中，退避之后逐条重试，能下几单下几单
+                    log.error("批量创建订单失败，voucherId = {}", entry.getKey(), e);
+                    failed = true;
+                    continue;
+                }
+                acknowledge(recordsByVoucher.get(entry.getKey()));
+            }
+            if (failed) {
+                nextPendingCheck = System.currentTimeMillis() + retryBackoffMs;
+            }
+        }
+
+        // 消息id按分区分组，每个分区一次确认 XACK stream.orders:{voucherId} g1 id1 id2 ...
+        private void acknowledge(List<MapRecord<String, Object, Object>> records) {
+            Map<String, List<RecordId>> recordIds = new LinkedHashMap<>();
+            for (MapRecord<String, Object, Object> record : records) {
+                recordIds.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+            }
+            recordIds.forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                    .acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        }
+
+        // 最多阻塞2秒，快到重试时间时阻塞的时间相应缩短
+        private Duration blockTimeout() {
+            long wait = nextPendingCheck - System.currentTimeMillis();
+            return Duration.ofMillis(Math.max(1, Math.min(2000, wait)));
+        }
+
+        /**
+         * 从各个分区轮流读取，不同分区可能在redis集群的不同节点上，不能在一次XREADGROUP中读多个分区
+         * 先不阻塞的读一轮 XREADGROUP GROUP g1 consumerName COUNT n STREAMS stream.orders:{voucherId} >
+         * 一轮都没有消息，再在下一个分区上阻塞一小段时间，最多timeout
+         */
+        private List<MapRecord<String, Object, Object>> readBatch(int count, Duration timeout) {
+            List<String> streams = partitions;
+            if (streams.isEmpty()) {
+                sleep(Math.min(timeout.toMillis(), idleBlockMs));
+                return new ArrayList<>();
+            }
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            for (int i = 0; i < streams.size() && records.size() < count; i++) {
+                String stream = streams.get(cursor++ % streams.size());
+                records.addAll(read(stream, StreamReadOptions.empty().count(count - records.size())));
+            }
+            if (records.isEmpty()) {
+                Duration block = Duration.ofMillis(Math.max(1, Math.min(timeout.toMillis(), idleBlockMs)));
+                records.addAll(read(streams.get(cursor++ % streams.size()), StreamReadOptions.empty().count(count).block(block)));
+            }
+            // 防止一直递增溢出
+            cursor = cursor & Integer.MAX_VALUE;
+            return records;
+        }
+
+        private List<MapRecord<String, Object, Object>> read(String stream, StreamReadOptions options) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName), options,
+                    StreamOffset.create(stream, ReadOffset.lastConsumed()));
+            return records == null ? Collections.emptyList() : records;
+        }
+
+        /**
+         * 处理自己名下pending-list中的消息
+         * 每条消息按投递次数指数退避重试，超过重试次数的消息转移到死信队列，不会卡住后面的消息
+         * @return 下一次需要检查pending-list的时间
+         */
+        private long handlePendingList() {
+            long next = Long.MAX_VALUE;
+            for (String stream : partitions) {
+                if (!running) {
+                    break;
+                }
+                next = Math.min(next, handlePendingList(stream));
+            }
+            return next;
+        }
+
+        private long handlePendingList(String stream) {
+            long next = Long.MAX_VALUE;
+            // XPENDING stream.orders:{voucherId} g1 - + 10 consumerName
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(stream,
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName), Range.unbounded(), 10L);
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (!running) {
+                    break;
+                }
+                String id = pendingMessage.getIdAsString();
+                long deliveries = pendingMessage.getTotalDeliveryCount();
+                // 超过重试次数，转移到死信队列
+                if (deliveries >= maxDeliveries) {
+                    moveToDeadLetter(stream, pendingMessage);
+                    continue;
+                }
+                // 还没到重试时间
+                long wait = backoff(deliveries) - pendingMessage.getElapsedTimeSinceLastDelivery().toMillis();
+                if (wait > 0) {
+                    next = Math.min(next, System.currentTimeMillis() + wait);
+                    continue;
+                }
+                try {
+                    // 重新投递给自己，XCLAIM会增加投递次数
+                    List<MapRecord<String, Object, Object>> records = claim(stream, SECKILL_ORDER_GROUP, consumerName,
+                            Duration.ZERO, pendingMessage.getId());
+                    if (records == null || records.isEmpty()) {
+                        // 消息已经不在stream中了，直接确认
+                        stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, pendingMessage.getId());
+                        continue;
+                    }
+                    // 解析数据
+                    MapRecord<String, Object, Object> record = records.get(0);
+                    Map<Object, Object> value = record.getValue();
+                    // 转化成对象
+                    VoucherOrder voucherOrder = new VoucherOrder();
+                    BeanUtil.fillBeanWithMap(value, voucherOrder, true);
+                    // 创建订单
+                    handleVoucherOrder(voucherOrder);
+                    // 确认消息 XACK
+                    stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, record.getId());
+                    lastErrors.remove(errorKey(stream, id));
+                } catch (Exception e) {
+                    log.error("处理pendding-list订单异常，id = {}，第{}次投递", id, deliveries + 1, e);
+                    lastErrors.put(errorKey(stream, id), e.toString());
+                    next = Math.min(next, System.currentTimeMillis() + backoff(deliveries + 1));
+                }
+            }
+            // 一次只处理了前10条，还有剩下的就尽快再来
+            if (pendingMessages.size() == 10) {
+                next = Math.min(next, System.currentTimeMillis() + retryBackoffMs);
+            }
+            return next;
+        }
+
+        // 把消息连同错误信息写入死信队列，再确认原消息
+        private void moveToDeadLetter(String stream, PendingMessage pendingMessage) {
+            String id = pendingMessage.getIdAsString();
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(stream, Range.closed(id, id));
+            if (records != null && !records.isEmpty()) {
+                Map<String, String> deadLetter = new HashMap<>();
+                records.get(0).getValue().forEach((k, v) -> deadLetter.put(k.toString(), v.toString()));
+                deadLetter.put("originalId", id);
+                deadLetter.put("stream", stream);
+                deadLetter.put("deliveries", String.valueOf(pendingMessage.getTotalDeliveryCount()));
+                deadLetter.put("consumer", consumerName);
+                String error = lastErrors.remove(errorKey(stream, id));
+                deadLetter.put("error", error == null ? "unknown" : error);
+                // XADD stream.orders.dlq * ...
+                stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_STREAM, deadLetter);
+                // 通知等待的客户端下单失败
+                String orderId = deadLetter.get("id");
+                String userId = deadLetter.get("userId");
+                if (orderId != null && userId != null) {
+                    orderStatusNotifier.complete(Collections.singletonMap(Long.valueOf(orderId), SeckillOrderStatusNotifier.FAILED),
+                            Collections.singletonMap(Long.valueOf(orderId), Long.valueOf(userId)));
+                }
+            }
+            stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, pendingMessage.getId());
+            log.error("订单消息超过重试次数，转入死信队列，stream = {}，id = {}", stream, id);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 第n次投递失败之后的退避时间：retryBackoffMs * 2^(n-1)，最多retryBackoffMaxMs
+    private long backoff(long deliveries) {
+        long shift = Math.min(Math.max(deliveries - 1, 0), 20);
+        return Math.min(retryBackoffMs << shift, retryBackoffMaxMs);
+    }
+
+    // 处理创建订单的业务
+    // 一人一单由数据库唯一索引保证，重复投递的消息也不会重复下单，所以不需要分布式锁
+    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        Set<Long> persisted = voucherOrderService.createVoucherOrder(voucherOrder);
+        publishStatus(Collections.singletonList(voucherOrder), persisted);
+    }
+
+    // 事务提交之后回写订单状态：创建订单时返回的id就是persisted，其他的是被唯一索引或者库存拦下来了
+    // 重复投递的消息订单已经存在，同样是persisted
+    private void publishStatus(List<VoucherOrder> voucherOrders, Set<Long> persisted) {
+        try {
+            Map<Long, String> statuses = new HashMap<>(voucherOrders.size() * 2);
+            Map<Long, Long> userIds = new HashMap<>(voucherOrders.size() * 2);
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                userIds.put(voucherOrder.getId(), voucherOrder.getUserId());
+                statuses.put(voucherOrder.getId(), persisted.contains(voucherOrder.getId())
+                        ? SeckillOrderStatusNotifier.PERSISTED : SeckillOrderStatusNotifier.FAILED);
+            }
+            orderStatusNotifier.complete(statuses, userIds);
+            // 累计处理的订单数，等候室按它来决定每波放行的人数
+            if (!persisted.isEmpty()) {
+                stringRedisTemplate.opsForValue().increment(SECKILL_ORDER_PERSISTED_KEY, persisted.size());
+            }
+        } catch (Exception e) {
+            // 订单已经处理完了，状态写失败不影响确认消息，客户端最多等到超时
+            log.error("回写订单状态失败", e);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+-- 这里的 KEYS[1] 就是位图分片的key，KEYS[2] 是临时key，和位图分片在同一个slot上
+-- ARGV[1] 是本地拼好的位图，ARGV[2] 是位图的过期时间，毫秒时间戳
+-- 写临时key、BITOP OR合并、删除临时key在一个脚本里执行，并发的预热不会互相覆盖临时key
+redis.call('set', KEYS[2], ARGV[1])
+redis.call('bitop', 'or', KEYS[1], KEYS[1], KEYS[2])
+redis.call('del', KEYS[2])
+redis.call('pexpireat', KEYS[1], ARGV[2])
+return 1
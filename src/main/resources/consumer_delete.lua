@@ -0,0 +1,22 @@
+-- 这里的 KEYS[1] 就是stream的key，ARGV[1] 就是消费者组名称，ARGV[2] 是最小空闲时间（毫秒）
+-- ARGV[3...] 是本实例的消费者名称，不删除
+-- 删除挂掉的消费者 XGROUP DELCONSUMER key group consumer，返回删除的个数
+-- 只删除pending-list为空并且空闲超过最小空闲时间的消费者，检查和删除在一个脚本里，中间不会有消息投递给它
+local keep = {}
+for i = 3, #ARGV do
+    keep[ARGV[i]] = true
+end
+local minIdle = tonumber(ARGV[2])
+local deleted = 0
+for _, consumer in ipairs(redis.call('xinfo', 'consumers', KEYS[1], ARGV[1])) do
+    -- 每个消费者的信息是 name xxx pending n idle ms 这样的键值对
+    local info = {}
+    for i = 1, #consumer, 2 do
+        info[consumer[i]] = consumer[i + 1]
+    end
+    if (not keep[info['name']] and info['pending'] == 0 and info['idle'] >= minIdle) then
+        redis.call('xgroup', 'delconsumer', KEYS[1], ARGV[1], info['name'])
+        deleted = deleted + 1
+    end
+end
+return deleted
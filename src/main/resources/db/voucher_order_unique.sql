@@ -0,0 +1,3 @@
+-- 已有数据库升级：订单表增加(user_id, voucher_id)唯一索引，一人一单由数据库保证
+-- 执行前需要先清理掉重复的订单，否则创建索引会失败
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
@@ -0,0 +1,12 @@
+-- 这里的 KEYS[1] 就是stream的key，这里的ARGV[1] 就是消费者组名称
+-- 创建消费者组，stream不存在时一起创建 XGROUP CREATE key group 0 MKSTREAM
+local ok = redis.pcall('xgroup', 'create', KEYS[1], ARGV[1], '0', 'MKSTREAM')
+if (type(ok) == 'table' and ok.err) then
+    -- 消费者组已经存在，返回0
+    if (string.find(ok.err, 'BUSYGROUP')) then
+        return 0
+    end
+    return redis.error_reply(ok.err)
+end
+-- 创建成功返回1
+return 1
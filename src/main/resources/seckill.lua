@@ -1,30 +1,116 @@
+-- 同一张券的一批秒杀请求在一次脚本调用中按顺序处理，每个请求的结果和逐个调用时完全一样
+-- 返回值是每个请求的结果数组：0成功 1库存不足 2重复下单 3券不存在 4秒杀没开始 5秒杀已结束或已下架 6库存租约已被收回
 -- 参数列表
 -- 优惠券id
 local voucherId = ARGV[1]
--- 用户id
-local userId = ARGV[2]
--- 订单id
-local orderId = ARGV[3]
+-- 当前时间，毫秒
+local now = tonumber(ARGV[2])
+-- 秒杀结束后已下单用户的位图再保留多久，毫秒
+local buyersRetain = tonumber(ARGV[3])
+-- 开启库存租约时是实例id，库存已经在实例本地扣过，这里只把这个实例租约中的数量减1；没开启时是空字符串
+local instance = ARGV[4]
+local leased = instance ~= ''
+-- 从第5个参数开始每两个参数是一个请求：用户id，订单id
+-- 订单状态的key不在这张券的slot上，由调用方在脚本执行成功后写入
+local n = (#ARGV - 4) / 2
 
+-- 所有key都由调用方传入，带着同一个 {voucherId} hash tag，在redis集群中落在同一个slot上
+-- 秒杀券的元数据key，保存 stock begin end status
+local metaKey = KEYS[1]
 -- 优惠券的库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 订单的key
-local orderKey = 'seckill:order:' .. voucherId
+local stockKey = KEYS[2]
+-- 卖完之后的售罄标记
+local soldOutKey = KEYS[3]
+-- 这张券的订单stream
+local streamKey = KEYS[4]
+-- 各实例租走还没卖出去的库存
+local leaseKey = KEYS[5]
+-- 从第6个key开始是每个请求的用户所在的位图分片，按用户id每2^23个分成一个key，和SeckillBuyerBitmap保持一致
+local chunkBits = 8388608
 
--- 判断是否还有库存
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 库存不足，返回1
-    return 1
+local results = {}
+
+-- 整批请求都返回同一个结果
+local function all(code)
+    for i = 1, n do
+        results[i] = code
+    end
+    return results
+end
+
+-- 校验优惠券是否存在以及是否在秒杀时间内
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'status')
+if (not meta[1]) then
+    -- 优惠券不存在，返回3
+    return all(3)
+end
+if (now < tonumber(meta[1])) then
+    -- 秒杀还没开始，返回4
+    return all(4)
+end
+if (now > tonumber(meta[2]) or meta[3] ~= '1') then
+    -- 秒杀已经结束或者优惠券已下架，返回5
+    return all(5)
 end
-if (redis.call('sismember', orderKey, userId) == 1) then
-    -- 用户已经下过单，返回2
-    return 2
+
+-- 已经售罄直接返回，不用再检查库存，库存租约模式下由stock_lease.lua在全部卖完时写入
+if (redis.call('exists', soldOutKey) == 1) then
+    return all(1)
+end
+
+-- 还有库存返回库存key，没有库存返回nil
+local function pickStock()
+    if (leased) then
+        -- 租约被收回了（心跳超时），本地剩下的库存已经还给中央库存，不能再卖
+        if ((tonumber(redis.call('hget', leaseKey, instance)) or 0) <= 0) then
+            return 'revoked'
+        end
+        return 'leased'
+    end
+    -- 判断是否还有库存，卖完了写入售罄标记，等候室据此放行剩下的人
+    if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+        redis.call('set', soldOutKey, '1')
+        return nil
+    end
+    return stockKey
+end
+
+local soldOut = false
+for i = 1, n do
+    local userId = ARGV[3 + i * 2]
+    local orderId = ARGV[4 + i * 2]
+    local uid = tonumber(userId)
+    local picked = nil
+    if (not soldOut) then
+        picked = pickStock()
+    end
+    if (picked == nil) then
+        -- 库存不足，返回1，同一批后面的请求也不用再检查库存了
+        soldOut = true
+        results[i] = 1
+    elseif (picked == 'revoked') then
+        results[i] = 6
+    else
+        local buyersKey = KEYS[5 + i]
+        local buyerOffset = uid % chunkBits
+        if (redis.call('getbit', buyersKey, buyerOffset) == 1) then
+            -- 用户已经下过单，返回2
+            results[i] = 2
+        else
+            -- 成功下单，扣减库存，库存租约模式下扣减这个实例租约中的数量
+            if (leased) then
+                redis.call('hincrby', leaseKey, instance, -1)
+            else
+                redis.call('incrby', picked, -1)
+            end
+            -- 保存下单过的用户，位图在秒杀结束一段时间后过期
+            redis.call('setbit', buyersKey, buyerOffset, 1)
+            redis.call('pexpireat', buyersKey, tonumber(meta[2]) + buyersRetain)
+            -- 发送消息到这张券的消息队列中 XADD stream.orders:{voucherId} * k1 v1 k2 v2
+            redis.call('xadd', streamKey, '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId)
+            -- 成功下单返回0
+            results[i] = 0
+        end
+    end
 end
--- 成功下单，扣减库存
-redis.call('incrby', stockKey, -1)
--- 保存下单过的用户
-redis.call('sadd', orderKey, userId)
--- 发送消息到消息队列中 XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd', 'stream.orders', '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId)
--- 成功下单返回0
-return 0
\ No newline at end of file
+return results
@@ -0,0 +1,33 @@
+-- 所有key带着同一个 {voucherId} hash tag，由调用方传入
+-- 这一秒的预算key，所有实例在同一秒内共享一份预算
+local budgetKey = KEYS[1]
+-- 库存key
+local stockKey = KEYS[2]
+-- 各实例租走的库存
+local leaseKey = KEYS[3]
+-- 参数列表
+-- 本次申请的令牌数
+local chunk = tonumber(ARGV[1])
+-- 每秒预算 = 剩余库存 * multiplier，至少minBudget
+local multiplier = tonumber(ARGV[2])
+local minBudget = tonumber(ARGV[3])
+
+-- 剩余库存
+local stock = tonumber(redis.call('get', stockKey)) or 0
+-- 开启库存租约时，各实例租走还没卖出去的库存也要算上
+local leases = redis.call('hvals', leaseKey)
+for i = 1, #leases do
+    stock = stock + math.max(tonumber(leases[i]), 0)
+end
+local budget = math.max(math.ceil(stock * multiplier), minBudget)
+
+-- 这一秒已经发出去的令牌
+local used = tonumber(redis.call('get', budgetKey)) or 0
+local grant = math.min(chunk, budget - used)
+if (grant <= 0) then
+    -- 这一秒的预算用完了
+    return 0
+end
+redis.call('incrby', budgetKey, grant)
+redis.call('expire', budgetKey, 2)
+return grant
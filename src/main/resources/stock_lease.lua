@@ -0,0 +1,81 @@
+-- 实例从中央库存租用一块库存
+-- 返回 {租到的数量, 秒杀结束时间}，租到的数量为0表示中央库存没有了但其他实例手里还有，-1表示全部卖完了
+-- 所有key带着同一个 {voucherId} hash tag，由调用方传入
+-- 库存key
+local stockKey = KEYS[1]
+-- 每个实例手里还没卖出去的库存，field是实例id，秒杀脚本每卖出一个就减1，所以这里的数量是准确的
+local leaseKey = KEYS[2]
+local metaKey = KEYS[3]
+local soldOutKey = KEYS[4]
+-- 每个实例最后一次心跳的时间，field是实例id
+local heartbeatKey = KEYS[5]
+-- 参数列表
+-- 实例id
+local instance = ARGV[1]
+-- 申请的数量
+local chunk = tonumber(ARGV[2])
+-- 当前时间，毫秒
+local now = tonumber(ARGV[3])
+-- 心跳超过这么久没有更新的实例认为已经宕机，手里的库存收回到中央库存
+local heartbeatTtl = tonumber(ARGV[4])
+
+local endTime = redis.call('hget', metaKey, 'end')
+if (not endTime) then
+    -- 优惠券不存在，交给秒杀脚本返回
+    return {0, 0}
+end
+endTime = tonumber(endTime)
+redis.call('hset', heartbeatKey, instance, ARGV[3])
+
+local function grant()
+    local stock = tonumber(redis.call('get', stockKey)) or 0
+    if (stock <= 0) then
+        return 0
+    end
+    local take = math.min(stock, chunk)
+    redis.call('incrby', stockKey, -take)
+    return take
+end
+
+local granted = grant()
+if (granted == 0) then
+    -- 中央库存没有了，收回心跳过期的实例手里的库存（实例宕机或者重启之后实例id变了）
+    local reclaimed = 0
+    local leases = redis.call('hgetall', leaseKey)
+    for i = 1, #leases, 2 do
+        local other = leases[i]
+        if (other ~= instance) then
+            local beat = tonumber(redis.call('hget', heartbeatKey, other))
+            if (beat == nil or beat < now - heartbeatTtl) then
+                reclaimed = reclaimed + math.max(tonumber(leases[i + 1]), 0)
+                redis.call('hdel', leaseKey, other)
+                redis.call('hdel', heartbeatKey, other)
+            end
+        end
+    end
+    if (reclaimed > 0) then
+        redis.call('incrby', stockKey, reclaimed)
+        granted = grant()
+    end
+end
+if (granted > 0) then
+    redis.call('hincrby', leaseKey, instance, granted)
+    redis.call('pexpireat', leaseKey, endTime + 86400000)
+    redis.call('pexpireat', heartbeatKey, endTime + 86400000)
+    return {granted, endTime}
+end
+
+-- 看其他实例手里还有没有没卖出去的库存，自己手里剩下的不算
+local outstanding = 0
+local leases = redis.call('hgetall', leaseKey)
+for i = 1, #leases, 2 do
+    if (leases[i] ~= instance) then
+        outstanding = outstanding + math.max(tonumber(leases[i + 1]), 0)
+    end
+end
+if (outstanding == 0) then
+    -- 全部卖完了，写入售罄标记
+    redis.call('set', soldOutKey, '1')
+    return {-1, endTime}
+end
+return {0, endTime}
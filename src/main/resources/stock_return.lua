@@ -0,0 +1,28 @@
+-- 实例把手里没卖出去的库存还给中央库存
+-- 所有key带着同一个 {voucherId} hash tag，由调用方传入
+local leaseKey = KEYS[1]
+-- 库存key
+local stockKey = KEYS[2]
+local heartbeatKey = KEYS[3]
+-- 参数列表
+-- 实例id
+local instance = ARGV[1]
+-- 归还的数量，-1表示全部归还并删除这个实例的租约
+local amount = tonumber(ARGV[2])
+-- 最多只能还租约中记录的数量，租约已经被其他实例收回时什么也不还，避免重复归还
+local held = math.max(tonumber(redis.call('hget', leaseKey, instance)) or 0, 0)
+if (amount < 0 or amount > held) then
+    amount = held
+end
+if (ARGV[2] == '-1') then
+    redis.call('hdel', leaseKey, instance)
+    redis.call('hdel', heartbeatKey, instance)
+elseif (amount > 0) then
+    redis.call('hincrby', leaseKey, instance, -amount)
+end
+if (amount <= 0) then
+    return 0
+end
+-- 有实例手里还有库存时不会写入售罄标记，所以这里不用清除
+redis.call('incrby', stockKey, amount)
+return amount
@@ -0,0 +1,9 @@
+-- 这里的 KEYS[1] 就是stream的key，ARGV[1] 是stream头部可以删除的消息数
+-- 在脚本里读取长度再裁剪，中间新写入的消息不会被误删
+local len = redis.call('xlen', KEYS[1])
+local keep = len - tonumber(ARGV[1])
+if (keep < 0) then
+    keep = 0
+end
+-- 近似裁剪只会删除完整的节点，删掉的消息数不会超过ARGV[1]
+return redis.call('xtrim', KEYS[1], 'MAXLEN', '~', keep)
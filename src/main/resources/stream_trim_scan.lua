@@ -0,0 +1,59 @@
+-- 这里的 KEYS[1] 就是stream的key，ARGV[1] 是最多返回的消息数
+-- 找出stream头部所有消费者组都已经确认过的消息，这些消息可以安全的归档和删除
+
+-- 比较两个消息id的大小，a < b 返回true
+local function parse(id)
+    local ms, seq = string.match(id, '(%d+)-(%d+)')
+    return tonumber(ms), tonumber(seq)
+end
+local function less(a, b)
+    local am, as = parse(a)
+    local bm, bs = parse(b)
+    return am < bm or (am == bm and as < bs)
+end
+
+if (redis.call('exists', KEYS[1]) == 0) then
+    return {}
+end
+
+-- 计算边界：小于边界的消息都已经被所有消费者组确认过了
+-- 有pending消息的组，边界是最小的pending消息id
+-- 没有pending消息的组，边界是最后投递的消息id的下一个id
+local boundary = nil
+local groups = redis.call('xinfo', 'groups', KEYS[1])
+for _, group in ipairs(groups) do
+    local name, pending, lastId
+    for i = 1, #group, 2 do
+        if (group[i] == 'name') then
+            name = group[i + 1]
+        elseif (group[i] == 'pending') then
+            pending = group[i + 1]
+        elseif (group[i] == 'last-delivered-id') then
+            lastId = group[i + 1]
+        end
+    end
+    local keep
+    if (pending > 0) then
+        keep = redis.call('xpending', KEYS[1], name)[2]
+    else
+        local ms, seq = parse(lastId)
+        keep = string.format('%d-%d', ms, seq + 1)
+    end
+    if (boundary == nil or less(keep, boundary)) then
+        boundary = keep
+    end
+end
+-- 没有消费者组就不知道哪些消息被消费了，什么都不删
+if (boundary == nil) then
+    return {}
+end
+
+local limit = tonumber(ARGV[1])
+local result = {}
+local entries = redis.call('xrange', KEYS[1], '-', boundary, 'COUNT', limit + 1)
+for _, entry in ipairs(entries) do
+    if (#result < limit and less(entry[1], boundary)) then
+        table.insert(result, entry)
+    end
+end
+return result
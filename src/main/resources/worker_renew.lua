@@ -0,0 +1,7 @@
+-- 这里的 KEYS[1] 就是workerId租约的key，ARGV[1] 是当前实例的标示，ARGV[2] 是租约时长，毫秒
+-- 租约还是自己的就续期
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+    return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+-- 租约已经过期或者被别的实例拿走了
+return 0
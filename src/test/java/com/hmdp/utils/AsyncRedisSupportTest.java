@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Answers;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * AsyncRedisSupport的单元测试：EVALSHA失败时退回EVAL，超时控制
+ */
+@SuppressWarnings("unchecked")
+public class AsyncRedisSupportTest {
+
+    private static final DefaultRedisScript<Long> SCRIPT = new DefaultRedisScript<>("return 1", Long.class);
+
+    // lettuce的future，测试中手动完成
+    private static class TestRedisFuture<T> extends CompletableFuture<T> implements RedisFuture<T> {
+
+        @Override
+        public String getError() {
+            return null;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            try {
+                get(timeout, unit);
+            } catch (ExecutionException e) {
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private TestRedisFuture<Object> evalshaResult;
+
+    private TestRedisFuture<Object> evalResult;
+
+    // 调用过的命令名
+    private final List<String> calls = new ArrayList<>();
+
+    private RedisClusterAsyncCommands<String, String> commands;
+
+    @Before
+    public void setUp() {
+        evalshaResult = new TestRedisFuture<>();
+        evalResult = new TestRedisFuture<>();
+        commands = mock(RedisClusterAsyncCommands.class, invocation -> {
+            String name = invocation.getMethod().getName();
+            switch (name) {
+                case "evalsha":
+                    calls.add(name + " " + invocation.getArgument(0));
+                    return evalshaResult;
+                case "eval":
+                    calls.add(name + " " + invocation.getArgument(0));
+                    return evalResult;
+                default:
+                    return Answers.RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+    }
+
+    private CompletableFuture<Long> eval() {
+        return AsyncRedisSupport.eval(commands, SCRIPT, ScriptOutputType.INTEGER, new String[]{"k"}, "v");
+    }
+
+    // 等待future失败，返回失败的原因
+    private static Throwable failure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(2, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("应该失败");
+        return null;
+    }
+
+    /**
+     * redis中已经缓存了脚本，只执行EVALSHA
+     */
+    @Test
+    public void evalUsesCachedScript() throws Exception {
+        CompletableFuture<Long> result = eval();
+        evalshaResult.complete(1L);
+
+        assertEquals(Long.valueOf(1), result.get(2, TimeUnit.SECONDS));
+        assertEquals(1, calls.size());
+        assertEquals("evalsha " + SCRIPT.getSha1(), calls.get(0));
+    }
+
+    /**
+     * redis重启或者脚本缓存被清空，EVALSHA返回NOSCRIPT，用EVAL执行一次脚本原文
+     */
+    @Test
+    public void evalFallsBackOnNoScript() throws Exception {
+        CompletableFuture<Long> result = eval();
+        evalshaResult.completeExceptionally(new RedisCommandExecutionException("NOSCRIPT No matching script. Please use EVAL."));
+        evalResult.complete(2L);
+
+        assertEquals(Long.valueOf(2), result.get(2, TimeUnit.SECONDS));
+        assertEquals(2, calls.size());
+        assertEquals("eval " + SCRIPT.getScriptAsString(), calls.get(1));
+    }
+
+    /**
+     * 其他错误直接失败，不重试EVAL
+     */
+    @Test
+    public void evalPropagatesOtherErrors() throws Exception {
+        CompletableFuture<Long> result = eval();
+        evalshaResult.completeExceptionally(new RedisCommandExecutionException("ERR something wrong"));
+
+        assertEquals("ERR something wrong", failure(result).getMessage());
+        assertEquals(1, calls.size());
+    }
+
+    /**
+     * EVAL也失败时返回EVAL的错误
+     */
+    @Test
+    public void evalPropagatesFallbackError() throws Exception {
+        CompletableFuture<Long> result = eval();
+        evalshaResult.completeExceptionally(new RedisCommandExecutionException("NOSCRIPT No matching script. Please use EVAL."));
+        evalResult.completeExceptionally(new RedisCommandExecutionException("ERR script error"));
+
+        assertEquals("ERR script error", failure(result).getMessage());
+    }
+
+    /**
+     * 超时之前没有完成就以TimeoutException失败
+     */
+    @Test
+    public void withTimeoutFailsSlowFutures() throws Exception {
+        long begin = System.currentTimeMillis();
+        CompletableFuture<Long> result = AsyncRedisSupport.withTimeout(new CompletableFuture<>(), 50);
+
+        assertTrue(failure(result) instanceof TimeoutException);
+        assertTrue(System.currentTimeMillis() - begin >= 50);
+    }
+
+    /**
+     * 超时之前完成的结果和错误原样传递，已经完成的future直接返回
+     */
+    @Test
+    public void withTimeoutPassesResults() throws Exception {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        CompletableFuture<Long> result = AsyncRedisSupport.withTimeout(future, 1000);
+        future.complete(3L);
+        assertEquals(Long.valueOf(3), result.get(2, TimeUnit.SECONDS));
+
+        CompletableFuture<Long> failed = new CompletableFuture<>();
+        result = AsyncRedisSupport.withTimeout(failed, 1000);
+        failed.completeExceptionally(new IllegalStateException("失败"));
+        assertEquals("失败", failure(result).getMessage());
+
+        CompletableFuture<Long> done = CompletableFuture.completedFuture(4L);
+        assertSame(done, AsyncRedisSupport.withTimeout(done, 1000));
+    }
+}
@@ -0,0 +1,263 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * CacheClient的单元测试，redis用内存版的替代，开启L1
+ */
+public class CacheClientTest {
+
+    private InMemoryRedis redis;
+
+    private CacheClient cacheClient;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedis();
+        EntityBloomFilter entityBloomFilter = mock(EntityBloomFilter.class);
+        when(entityBloomFilter.mightContain(anyString(), any())).thenReturn(true);
+        cacheClient = new CacheClient(redis.template, mock(RedisMessageListenerContainer.class),
+                Arrays.asList(new JsonCacheCodec(), new BinaryCacheCodec()), entityBloomFilter);
+        ReflectionTestUtils.setField(cacheClient, "l1Enabled", true);
+        ReflectionTestUtils.setField(cacheClient, "l1Capacity", 100);
+        ReflectionTestUtils.setField(cacheClient, "l1TtlMs", 60000L);
+        ReflectionTestUtils.setField(cacheClient, "codecName", "binary");
+        ReflectionTestUtils.invokeMethod(cacheClient, "init");
+    }
+
+    private static Shop shop(long id) {
+        return new Shop().setId(id).setName("店铺" + id);
+    }
+
+    // 不应该被调用的数据库查询
+    private static <T> Function<T, Shop> noDb() {
+        return id -> {
+            throw new AssertionError("不应该查询数据库，id = " + id);
+        };
+    }
+
+    /**
+     * 一次批量查询里同时有缓存命中、缓存的空值、数据库中有的和数据库中也没有的id
+     */
+    @Test
+    public void queryBatchMixesHitsNullsAndDatabaseLoads() {
+        cacheClient.set(CACHE_SHOP_KEY + 1, shop(1), 30L, TimeUnit.MINUTES);
+        redis.put(CACHE_SHOP_KEY + 2, new byte[0]);
+        List<Collection<Long>> dbCalls = new ArrayList<>();
+        Function<Collection<Long>, Map<Long, Shop>> db = ids -> {
+            dbCalls.add(new ArrayList<>(ids));
+            Map<Long, Shop> shops = new HashMap<>();
+            if (ids.contains(3L)) {
+                shops.put(3L, shop(3));
+            }
+            return shops;
+        };
+
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, Arrays.asList(1L, 2L, 3L, 4L), Shop.class, db, 30L, TimeUnit.MINUTES);
+
+        assertEquals(Arrays.asList(shop(1), null, shop(3), null), shops);
+        assertEquals(Collections.singletonList(Arrays.asList(3L, 4L)), dbCalls);
+        // 数据库中有的写回缓存，没有的缓存空值
+        assertNotNull(redis.get(CACHE_SHOP_KEY + 3));
+        assertArrayEquals(new byte[0], redis.get(CACHE_SHOP_KEY + 4));
+
+        // 再查一次全部来自L1和redis，不再查数据库
+        shops = cacheClient.queryBatch(CACHE_SHOP_KEY, Arrays.asList(1L, 2L, 3L, 4L), Shop.class, db, 30L, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList(shop(1), null, shop(3), null), shops);
+        assertEquals(1, dbCalls.size());
+    }
+
+    /**
+     * 批量查询的结果写入L1之后，单个查询直接从L1返回
+     */
+    @Test
+    public void singleQueriesReuseBatchResults() {
+        cacheClient.set(CACHE_SHOP_KEY + 1, shop(1), 30L, TimeUnit.MINUTES);
+        cacheClient.queryBatch(CACHE_SHOP_KEY, Collections.singletonList(1L), Shop.class,
+                ids -> Collections.emptyMap(), 30L, TimeUnit.MINUTES);
+        redis.data.clear();
+
+        assertEquals(shop(1), cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 1L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+        assertEquals(shop(1), cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * 已经逻辑过期的数据批量查询照常返回，但不写入L1，之后的单个查询会去重建
+     */
+    @Test
+    public void queryBatchSkipsL1ForLogicallyExpiredValues() {
+        redis.put(CACHE_SHOP_KEY + 1, CacheEnvelope.wrap(new BinaryCacheCodec(), shop(1), System.currentTimeMillis() - 1000));
+
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, Collections.singletonList(1L), Shop.class,
+                ids -> Collections.emptyMap(), 30L, TimeUnit.MINUTES);
+        assertEquals(Collections.singletonList(shop(1)), shops);
+        redis.data.clear();
+
+        assertEquals(shop(9), cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 1L, Shop.class, id -> shop(9), 30L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * queryBatch在L1中放了空值的占位对象之后，同一个key的单个查询返回null，不能把占位对象转换成实体
+     */
+    @Test
+    public void singleQueriesAfterBatchCachedNullReturnNull() {
+        redis.put(CACHE_SHOP_KEY + 2, new byte[0]);
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, Collections.singletonList(2L), Shop.class,
+                ids -> {
+                    throw new AssertionError("不应该查询数据库");
+                }, 30L, TimeUnit.MINUTES);
+        assertEquals(Collections.singletonList(null), shops);
+
+        assertNull(cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 2L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+        assertNull(cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 2L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * 用配置的编解码器写入，头部带着编解码器的id，读回来和写入的一样
+     */
+    @Test
+    public void writesWithConfiguredCodec() {
+        cacheClient.set(CACHE_SHOP_KEY + 1, shop(1), 30L, TimeUnit.MINUTES);
+
+        assertEquals(BinaryCacheCodec.ID, CacheEnvelope.codecId(redis.get(CACHE_SHOP_KEY + 1)));
+        assertEquals(shop(1), cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * 切换编解码器之后，按头部的id仍然能读取旧编解码器写入的值
+     */
+    @Test
+    public void readsValuesWrittenByOtherRegisteredCodec() {
+        redis.put(CACHE_SHOP_KEY + 7, CacheEnvelope.wrap(new JsonCacheCodec(), shop(7), System.currentTimeMillis() + 60000));
+
+        assertEquals(shop(7), cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 7L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * 升级前用RedisData json格式写入的逻辑过期数据，没过期时照常读取
+     */
+    @Test
+    public void readsLegacyJsonLogicalExpire() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop(8));
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(1));
+        redis.put(CACHE_SHOP_KEY + 8, JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(shop(8), cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 8L, Shop.class, noDb(), 30L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * 本实例不认识的编解码器写入的值解码失败，没有旧数据可以返回，和未命中一样同步加载并覆盖
+     */
+    @Test
+    public void logicalExpireReloadsWhenCodecUnknown() {
+        CacheCodec unknown = mock(CacheCodec.class);
+        when(unknown.id()).thenReturn((byte) 99);
+        when(unknown.encode(any())).thenReturn(new byte[]{1, 2, 3});
+        redis.put(CACHE_SHOP_KEY + 6, CacheEnvelope.wrap(unknown, shop(6), System.currentTimeMillis() + 60000));
+
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 6L, Shop.class, CacheClientTest::shop, 30L, TimeUnit.MINUTES);
+
+        assertEquals(shop(6), shop);
+        assertEquals(BinaryCacheCodec.ID, CacheEnvelope.codecId(redis.get(CACHE_SHOP_KEY + 6)));
+    }
+
+    /**
+     * 逻辑过期的key在redis中不存在时同步加载，不能返回null
+     */
+    @Test
+    public void logicalExpireLoadsSynchronouslyOnMiss() {
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 5L, Shop.class, CacheClientTest::shop, 30L, TimeUnit.MINUTES);
+
+        assertEquals(shop(5), shop);
+        byte[] data = redis.get(CACHE_SHOP_KEY + 5);
+        assertEquals(BinaryCacheCodec.ID, CacheEnvelope.codecId(data));
+        assertTrue(CacheEnvelope.expireAt(data) > System.currentTimeMillis());
+    }
+
+    /**
+     * 同一个key的并发未命中只查一次数据库，其他线程拿到同一个结果
+     */
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        AtomicInteger dbCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Function<Long, Shop> db = id -> {
+            dbCalls.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return shop(id);
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Shop>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(() -> cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 8L, Shop.class, db, 30L, TimeUnit.MINUTES)));
+            }
+            // 等所有线程都进入查询之后再让数据库返回
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<Shop> future : futures) {
+                assertEquals(shop(8), future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, dbCalls.get());
+    }
+
+    /**
+     * 加载失败时异常抛给调用方，互斥锁和合并中的加载都要清理掉，下一次查询重新加载
+     */
+    @Test
+    public void failedLoadIsNotCached() {
+        try {
+            cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 9L, Shop.class, id -> {
+                throw new IllegalStateException("数据库不可用");
+            }, 30L, TimeUnit.MINUTES);
+            fail("应该抛出数据库的异常");
+        } catch (IllegalStateException e) {
+            assertEquals("数据库不可用", e.getMessage());
+        }
+        assertNull(redis.get(RedisConstants.LOCK_CACHE_KEY + CACHE_SHOP_KEY + 9));
+
+        assertEquals(shop(9), cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 9L, Shop.class, CacheClientTest::shop, 30L, TimeUnit.MINUTES));
+    }
+}
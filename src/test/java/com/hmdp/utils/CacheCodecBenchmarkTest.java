@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 对比缓存一个店铺占用的字节数和每次读取的CPU时间：
+ * 原来的json格式（RedisData解析一次，里面的data再转换一次）和新的头部+二进制格式
+ * 耗时只打印出来做参考，不做断言
+ */
+public class CacheCodecBenchmarkTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 200000;
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        Shop shop = shop();
+        long expireAt = System.currentTimeMillis() + 60000;
+        byte[] data = CacheEnvelope.wrap(new BinaryCacheCodec(), shop, expireAt);
+        assertTrue(CacheEnvelope.isEnvelope(data));
+        assertEquals(BinaryCacheCodec.ID, CacheEnvelope.codecId(data));
+        assertEquals(expireAt, CacheEnvelope.expireAt(data));
+        assertEquals(shop, CacheEnvelope.unwrap(new BinaryCacheCodec(), data, Shop.class));
+
+        Shop empty = new Shop().setId(2L);
+        assertEquals(empty, CacheEnvelope.unwrap(new BinaryCacheCodec(),
+                CacheEnvelope.wrap(new BinaryCacheCodec(), empty, 0), Shop.class));
+    }
+
+    @Test
+    public void jsonRoundTrip() {
+        Shop shop = shop();
+        byte[] data = CacheEnvelope.wrap(new JsonCacheCodec(), shop, 0);
+        assertEquals(JsonCacheCodec.ID, CacheEnvelope.codecId(data));
+        Shop decoded = CacheEnvelope.unwrap(new JsonCacheCodec(), data, Shop.class);
+        assertEquals(shop.getName(), decoded.getName());
+        assertEquals(shop.getX(), decoded.getX());
+    }
+
+    @Test
+    public void legacyJsonIsNotEnvelope() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setExpireTime(LocalDateTime.now());
+        assertTrue(!CacheEnvelope.isEnvelope(JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8)));
+        assertTrue(!CacheEnvelope.isEnvelope("\"\"".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void compareWithJson() {
+        Shop shop = shop();
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(30);
+
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(expireTime);
+        byte[] json = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        byte[] binary = CacheEnvelope.wrap(codec, shop,
+                expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+
+        long jsonNanos = time(() -> readJson(json));
+        long binaryNanos = time(() -> readBinary(codec, binary));
+        System.out.printf("json:   %d bytes, %d ns/read%n", json.length, jsonNanos / ROUNDS);
+        System.out.printf("binary: %d bytes, %d ns/read%n", binary.length, binaryNanos / ROUNDS);
+
+        assertTrue(binary.length < json.length);
+        assertArrayEquals(binary, CacheEnvelope.wrap(codec, readBinary(codec, binary), CacheEnvelope.expireAt(binary)));
+    }
+
+    // 原来的读取方式：解析RedisData，再把data转换成Shop，再比较过期时间
+    private static Shop readJson(byte[] data) {
+        RedisData redisData = JSONUtil.toBean(new String(data, StandardCharsets.UTF_8), RedisData.class);
+        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+        return redisData.getExpireTime().isAfter(LocalDateTime.now()) ? shop : null;
+    }
+
+    // 新的读取方式：先读头部的过期时间，再解码
+    private static Shop readBinary(BinaryCacheCodec codec, byte[] data) {
+        if (CacheEnvelope.expireAt(data) <= System.currentTimeMillis()) {
+            return null;
+        }
+        return CacheEnvelope.unwrap(codec, data, Shop.class);
+    }
+
+    private static long time(Runnable read) {
+        for (int i = 0; i < WARMUP; i++) {
+            read.run();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            read.run();
+        }
+        return System.nanoTime() - begin;
+    }
+}
@@ -0,0 +1,201 @@
+package com.hmdp.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_READY_SUFFIX;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * EntityBloomFilter的单元测试：构建、同步到本地、新增id和参数修改后重建
+ * 位图用2^16个bit、7个哈希函数，1000个id的理论误判率在百万分之一以下
+ */
+public class EntityBloomFilterTest {
+
+    private static final long BITS = 1 << 16;
+    private static final int HASHES = 7;
+    private static final int IDS = 1000;
+
+    private static final String BITMAP_KEY = BLOOM_KEY + "{shop}:" + BITS + ":" + HASHES;
+    private static final String READY_KEY = BITMAP_KEY + BLOOM_READY_SUFFIX;
+
+    private InMemoryRedis redis;
+
+    private EntityBloomFilter bloomFilter;
+
+    // 构建时读取了几页id
+    private final AtomicInteger pageLoads = new AtomicInteger();
+
+    private RLock lock;
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedis();
+        lock = mock(RLock.class);
+        when(lock.tryLock()).thenReturn(true);
+        bloomFilter = bloomFilter(BITS, HASHES, mock(RedisMessageListenerContainer.class));
+    }
+
+    // 数据库中的店铺id是1~1000
+    private EntityBloomFilter bloomFilter(long bits, int hashes, RedisMessageListenerContainer container) {
+        RedissonClient redissonClient = mock(RedissonClient.class);
+        when(redissonClient.getLock(anyString())).thenReturn(lock);
+        EntityBloomFilter filter = new EntityBloomFilter();
+        ReflectionTestUtils.setField(filter, "stringRedisTemplate", redis.template);
+        ReflectionTestUtils.setField(filter, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(filter, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        ReflectionTestUtils.setField(filter, "bits", bits);
+        ReflectionTestUtils.setField(filter, "hashes", hashes);
+        ReflectionTestUtils.invokeMethod(filter, "init");
+        filter.register("shop", CACHE_SHOP_KEY, lastId -> {
+            pageLoads.incrementAndGet();
+            List<Long> ids = new ArrayList<>();
+            for (long id = lastId + 1; id <= IDS && ids.size() < EntityBloomFilter.BUILD_PAGE_SIZE; id++) {
+                ids.add(id);
+            }
+            return ids;
+        });
+        return filter;
+    }
+
+    private void sync() {
+        ReflectionTestUtils.invokeMethod(bloomFilter, "syncAll");
+    }
+
+    // 不存在的id中被误判为可能存在的个数
+    private int falsePositives() {
+        int count = 0;
+        for (long id = 1_000_001; id <= 1_100_000; id++) {
+            if (bloomFilter.mightContain(CACHE_SHOP_KEY, id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 还没构建完、没有注册过的前缀都放行
+     */
+    @Test
+    public void allowsEverythingUntilReady() {
+        assertTrue(bloomFilter.mightContain(CACHE_SHOP_KEY, 1_000_001L));
+        assertTrue(bloomFilter.mightContain("cache:unknown:", 1L));
+    }
+
+    /**
+     * 构建之后所有存在的id都判断为可能存在，不存在的id几乎都能拦住
+     */
+    @Test
+    public void buildsAndSyncsWithoutFalseNegatives() {
+        sync();
+
+        assertEquals(BITS + ":" + HASHES, new String(redis.get(READY_KEY), StandardCharsets.UTF_8));
+        assertEquals(1, pageLoads.get());
+        for (long id = 1; id <= IDS; id++) {
+            assertTrue("id = " + id, bloomFilter.mightContain(CACHE_SHOP_KEY, id));
+        }
+        int falsePositives = falsePositives();
+        assertTrue("误判数：" + falsePositives, falsePositives < 10);
+
+        // 已经构建过的不再构建
+        sync();
+        assertEquals(1, pageLoads.get());
+    }
+
+    /**
+     * 新增的id立即写入本地和redis的位图
+     */
+    @Test
+    public void addedIdsAreVisibleImmediately() {
+        sync();
+        assertFalse(bloomFilter.mightContain(CACHE_SHOP_KEY, "abc"));
+
+        bloomFilter.add(CACHE_SHOP_KEY, "abc");
+
+        assertTrue(bloomFilter.mightContain(CACHE_SHOP_KEY, "abc"));
+        // 另一个实例同步之后也能看到
+        EntityBloomFilter other = new EntityBloomFilter();
+        ReflectionTestUtils.setField(other, "stringRedisTemplate", redis.template);
+        ReflectionTestUtils.setField(other, "enabled", true);
+        ReflectionTestUtils.setField(other, "bits", BITS);
+        ReflectionTestUtils.setField(other, "hashes", HASHES);
+        other.register("shop", CACHE_SHOP_KEY, lastId -> Collections.emptyList());
+        ReflectionTestUtils.invokeMethod(other, "syncAll");
+        assertTrue(other.mightContain(CACHE_SHOP_KEY, "abc"));
+    }
+
+    /**
+     * 别的实例还在构建时不读取位图，读到的可能只写了一部分
+     */
+    @Test
+    public void waitsForAnotherInstanceToFinishBuilding() {
+        when(lock.tryLock()).thenReturn(false);
+        redis.put(BITMAP_KEY, new byte[]{(byte) 0x80});
+
+        sync();
+
+        assertEquals(0, pageLoads.get());
+        assertTrue(bloomFilter.mightContain(CACHE_SHOP_KEY, 1_000_001L));
+    }
+
+    /**
+     * 滚动发布时参数不同的实例各自构建自己的位图，不会删掉对方的位图；
+     * 参数不同的实例新增的id也会写入本实例参数的位图
+     */
+    @Test
+    public void instancesWithDifferentParametersKeepSeparateBitmaps() {
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        bloomFilter = bloomFilter(BITS, HASHES, container);
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(listener.capture(), any(Topic.class));
+        sync();
+        byte[] built = redis.get(BITMAP_KEY).clone();
+
+        EntityBloomFilter other = bloomFilter(BITS >> 1, 5, mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.invokeMethod(other, "syncAll");
+
+        assertEquals(2, pageLoads.get());
+        assertArrayEquals(built, redis.get(BITMAP_KEY));
+        assertEquals(BITS + ":" + HASHES, new String(redis.get(READY_KEY), StandardCharsets.UTF_8));
+        assertNotNull(redis.get(BLOOM_KEY + "{shop}:" + (BITS >> 1) + ":5" + BLOOM_READY_SUFFIX));
+        assertTrue(other.mightContain(CACHE_SHOP_KEY, 1L));
+
+        // 另一个参数的实例新增了一个id，本实例收到广播
+        other.add(CACHE_SHOP_KEY, "abc");
+        String[] published = redis.published.get(0);
+        listener.getValue().onMessage(new DefaultMessage(published[0].getBytes(StandardCharsets.UTF_8),
+                published[1].getBytes(StandardCharsets.UTF_8)), null);
+
+        assertTrue(bloomFilter.mightContain(CACHE_SHOP_KEY, "abc"));
+        // 之后启动的和本实例参数相同的实例从redis同步也能看到
+        EntityBloomFilter later = bloomFilter(BITS, HASHES, mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.invokeMethod(later, "syncAll");
+        assertTrue(later.mightContain(CACHE_SHOP_KEY, "abc"));
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import org.mockito.Answers;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 单元测试用的内存版redis，只实现了被测代码用到的几个string和bit命令
+ * StringRedisTemplate、RedisConnection、ValueOperations都是mockito的mock，按方法名转到内存中的map，
+ * 没有实现的方法返回mockito的默认值
+ */
+@SuppressWarnings("unchecked")
+class InMemoryRedis {
+
+    final Map<String, byte[]> data = new ConcurrentHashMap<>();
+
+    // PUBLISH发出的消息：{channel, message}，不会投递给任何订阅者
+    final List<String[]> published = Collections.synchronizedList(new ArrayList<>());
+
+    final RedisConnection connection = mock(RedisConnection.class,
+            withSettings().stubOnly().defaultAnswer(this::connectionCommand));
+
+    final ValueOperations<String, String> valueOps = mock(ValueOperations.class,
+            withSettings().stubOnly().defaultAnswer(this::valueCommand));
+
+    final StringRedisTemplate template = mock(StringRedisTemplate.class,
+            withSettings().stubOnly().defaultAnswer(this::templateCommand));
+
+    void put(String key, byte[] value) {
+        data.put(key, value);
+    }
+
+    byte[] get(String key) {
+        return data.get(key);
+    }
+
+    private Object templateCommand(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        switch (invocation.getMethod().getName()) {
+            case "opsForValue":
+                return valueOps;
+            case "execute":
+                if (args.length > 0 && args[0] instanceof RedisCallback) {
+                    return ((RedisCallback<?>) args[0]).doInRedis(connection);
+                }
+                break;
+            case "executePipelined":
+                // pipeline中的命令立即执行，结果被测代码都没有用到
+                if (args.length > 0 && args[0] instanceof RedisCallback) {
+                    ((RedisCallback<?>) args[0]).doInRedis(connection);
+                    return Collections.emptyList();
+                }
+                break;
+            case "delete":
+                if (args[0] instanceof String) {
+                    return data.remove(args[0]) != null;
+                }
+                break;
+            case "hasKey":
+                return data.containsKey(args[0]);
+            default:
+        }
+        return Answers.RETURNS_DEFAULTS.answer(invocation);
+    }
+
+    private Object connectionCommand(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        switch (invocation.getMethod().getName()) {
+            case "get":
+                return data.get(key(args[0]));
+            case "mGet":
+                List<byte[]> values = new ArrayList<>();
+                for (Object key : varargs(args)) {
+                    values.add(data.get(key(key)));
+                }
+                return values;
+            case "set":
+                data.put(key(args[0]), (byte[]) args[1]);
+                return true;
+            case "pSetEx":
+                data.put(key(args[0]), (byte[]) args[2]);
+                return true;
+            case "setBit":
+                return setBit(key(args[0]), (Long) args[1], (Boolean) args[2]);
+            case "publish":
+                published.add(new String[]{key(args[0]), key(args[1])});
+                return 0L;
+            default:
+        }
+        return Answers.RETURNS_DEFAULTS.answer(invocation);
+    }
+
+    private Object valueCommand(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        switch (invocation.getMethod().getName()) {
+            case "get":
+                byte[] value = data.get((String) args[0]);
+                return value == null ? null : new String(value, StandardCharsets.UTF_8);
+            case "set":
+                data.put((String) args[0], bytes((String) args[1]));
+                return null;
+            case "setIfAbsent":
+                return data.putIfAbsent((String) args[0], bytes((String) args[1])) == null;
+            case "increment":
+                return increment((String) args[0], args.length > 1 ? (Long) args[1] : 1L);
+            default:
+        }
+        return Answers.RETURNS_DEFAULTS.answer(invocation);
+    }
+
+    private synchronized long increment(String key, long delta) {
+        byte[] old = data.get(key);
+        long value = (old == null ? 0 : Long.parseLong(new String(old, StandardCharsets.UTF_8))) + delta;
+        data.put(key, bytes(String.valueOf(value)));
+        return value;
+    }
+
+    // 和redis一样第0位是第一个字节的最高位，返回原来的值
+    private synchronized boolean setBit(String key, long offset, boolean value) {
+        byte[] bitmap = data.getOrDefault(key, new byte[0]);
+        int index = (int) (offset >> 3);
+        if (index >= bitmap.length) {
+            bitmap = Arrays.copyOf(bitmap, index + 1);
+        }
+        int mask = 0x80 >>> (offset & 7);
+        boolean old = (bitmap[index] & mask) != 0;
+        bitmap[index] = (byte) (value ? bitmap[index] | mask : bitmap[index] & ~mask);
+        data.put(key, bitmap);
+        return old;
+    }
+
+    // 可变参数可能展开成多个参数，也可能是一个数组
+    private static Object[] varargs(Object[] args) {
+        return args.length == 1 && args[0] instanceof byte[][] ? (Object[]) args[0] : args;
+    }
+
+    private static String key(Object key) {
+        return new String((byte[]) key, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
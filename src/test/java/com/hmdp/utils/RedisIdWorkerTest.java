@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+
+/**
+ * RedisIdWorker各个发号模式的单元测试，redis用内存版的替代
+ */
+public class RedisIdWorkerTest {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    private InMemoryRedis redis;
+
+    private final List<RedisIdWorker> workers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        redis = new InMemoryRedis();
+    }
+
+    @After
+    public void tearDown() {
+        workers.forEach(worker -> ReflectionTestUtils.invokeMethod(worker, "destroy"));
+    }
+
+    // 号段比默认的小，测试中会用到多个号段和预取
+    private RedisIdWorker worker(String mode) {
+        RedisIdWorker worker = new RedisIdWorker(redis.template);
+        ReflectionTestUtils.setField(worker, "mode", mode);
+        ReflectionTestUtils.setField(worker, "segmentSize", 100L);
+        ReflectionTestUtils.setField(worker, "segmentPrefetchRatio", 0.2);
+        ReflectionTestUtils.setField(worker, "workerLeaseMs", 30000L);
+        ReflectionTestUtils.setField(worker, "maxBackwardMs", 5L);
+        ReflectionTestUtils.invokeMethod(worker, "init");
+        workers.add(worker);
+        return worker;
+    }
+
+    // redis模式和号段模式中ID的时间戳部分
+    private static long secondsSinceBegin() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    private long counter(String keyPrefix) {
+        String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        byte[] value = redis.get("icr:" + keyPrefix + ":" + date);
+        return value == null ? 0 : Long.parseLong(new String(value, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * redis模式：时间戳 + 当天的计数器
+     */
+    @Test
+    public void redisModeUsesDailyCounter() {
+        RedisIdWorker worker = worker("redis");
+        long before = secondsSinceBegin();
+
+        long first = worker.nextId("order");
+        long second = worker.nextId("order");
+
+        assertEquals(1, first & 0xFFFFFFFFL);
+        assertEquals(2, second & 0xFFFFFFFFL);
+        long timestamp = first >>> 32;
+        assertTrue(timestamp >= before && timestamp <= secondsSinceBegin());
+        assertEquals(0, first & (1L << 62));
+    }
+
+    /**
+     * 号段模式：多线程发号不重复，格式和redis模式一样，每段只访问一次redis
+     */
+    @Test
+    public void segmentModeIdsAreUniqueAcrossThreads() throws Exception {
+        RedisIdWorker worker = worker("segment");
+        long before = secondsSinceBegin();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(pool.submit(() -> {
+                List<Long> ids = new ArrayList<>();
+                for (int j = 0; j < 5000; j++) {
+                    ids.add(worker.nextId("order"));
+                }
+                return ids;
+            }));
+        }
+        Set<Long> ids = new HashSet<>();
+        try {
+            for (Future<List<Long>> future : futures) {
+                ids.addAll(future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(40000, ids.size());
+        long counter = counter("order");
+        assertEquals(0, counter % 100);
+        // 只多预留了当前段之后预取的几段
+        assertTrue("counter = " + counter, counter >= 40000 && counter <= 41000);
+        for (long id : ids) {
+            long timestamp = id >>> 32;
+            assertTrue(timestamp >= before && timestamp <= secondsSinceBegin());
+            long sequence = id & 0xFFFFFFFFL;
+            assertTrue(sequence >= 1 && sequence <= counter);
+        }
+    }
+
+    /**
+     * 号段模式和redis模式共用同一个计数器，混用也不会发出重复的序列号
+     */
+    @Test
+    public void segmentModeSharesCounterWithRedisMode() {
+        RedisIdWorker redisWorker = worker("redis");
+        RedisIdWorker segmentWorker = worker("segment");
+        Set<Long> sequences = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            assertTrue(sequences.add(redisWorker.nextId("order") & 0xFFFFFFFFL));
+            assertTrue(sequences.add(segmentWorker.nextId("order") & 0xFFFFFFFFL));
+        }
+    }
+
+    // 雪花模式ID中的workerId
+    private static long workerIdOf(long id) {
+        return id >>> 12 & 1023;
+    }
+
+    /**
+     * 雪花模式：第62位是雪花标记，单个实例发出的ID严格递增，workerId是租到的那个
+     */
+    @Test
+    public void snowflakeIdsAreFlaggedAndIncreasing() {
+        RedisIdWorker worker = worker("snowflake");
+        long workerId = (long) ReflectionTestUtils.getField(worker, "workerId");
+        assertNotNull(redis.get(ID_WORKER_KEY + workerId));
+
+        long last = 0;
+        for (int i = 0; i < 100000; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last);
+            assertEquals(1L << 62, id & (3L << 62));
+            assertEquals(workerId, workerIdOf(id));
+            last = id;
+        }
+    }
+
+    /**
+     * 雪花模式的ID和redis模式的ID不在同一个范围里，切换模式之后不会重复
+     */
+    @Test
+    public void snowflakeIdsDoNotOverlapRedisIds() {
+        long redisId = worker("redis").nextId("order");
+        long snowflakeId = worker("snowflake").nextId("order");
+
+        assertEquals(0, redisId & (1L << 62));
+        assertTrue(snowflakeId > redisId);
+        // redis模式的秒级时间戳要到2056年才会用到第62位
+        long maxRedisTimestamp = (1L << 30) - 1;
+        assertTrue(LocalDateTime.of(2056, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP < maxRedisTimestamp);
+    }
+
+    /**
+     * 多个实例租到不同的workerId
+     */
+    @Test
+    public void snowflakeWorkersLeaseDistinctIds() {
+        Set<Long> workerIds = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(workerIds.add(workerIdOf(worker("snowflake").nextId("order"))));
+        }
+    }
+
+    /**
+     * 租约在本地过期之后拒绝发号，避免和接手这个workerId的实例重复
+     */
+    @Test(expected = IllegalStateException.class)
+    public void snowflakeRefusesAfterLeaseExpires() {
+        RedisIdWorker worker = worker("snowflake");
+        ReflectionTestUtils.setField(worker, "leaseValidUntil", System.currentTimeMillis() - 1);
+        worker.nextId("order");
+    }
+
+    /**
+     * 本地租约的过期时间从发出SET之前算起，SET返回得慢也不会晚于redis中的过期时间
+     */
+    @Test
+    public void snowflakeLeaseStartsBeforeSet() {
+        doAnswer(invocation -> {
+            Thread.sleep(200);
+            return redis.data.putIfAbsent(invocation.getArgument(0), invocation.<String>getArgument(1).getBytes(StandardCharsets.UTF_8)) == null;
+        }).when(redis.valueOps).setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+
+        long before = System.currentTimeMillis();
+        RedisIdWorker worker = worker("snowflake");
+
+        // SET用了200ms，本地租约的过期时间比SET返回之后再算早这么多
+        long leaseValidUntil = (long) ReflectionTestUtils.getField(worker, "leaseValidUntil");
+        assertTrue(leaseValidUntil < before + 30000 + 200);
+    }
+
+    /**
+     * 时钟回拨超过允许的时间时拒绝发号
+     */
+    @Test(expected = IllegalStateException.class)
+    public void snowflakeRefusesLargeClockBackward() {
+        RedisIdWorker worker = worker("snowflake");
+        worker.nextId("order");
+        ReflectionTestUtils.setField(worker, "lastTimestamp", System.currentTimeMillis() + 1000);
+        worker.nextId("order");
+    }
+}
@@ -0,0 +1,136 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.RedisURI;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 已下单用户位图批量写入的测试，redis用 -Dhmdp.test.redis 指定的真实redis（默认 redis://127.0.0.1:6379），连不上就跳过
+ */
+public class SeckillBuyerBitmapTest {
+
+    private static LettuceConnectionFactory connectionFactory;
+
+    private static StringRedisTemplate stringRedisTemplate;
+
+    private Long voucherId;
+
+    private long expireAt;
+
+    private SeckillBuyerBitmap seckillBuyerBitmap;
+
+    @BeforeClass
+    public static void connect() {
+        RedisURI uri = RedisURI.create(System.getProperty("hmdp.test.redis", "redis://127.0.0.1:6379"));
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(uri.getHost(), uri.getPort()));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        try {
+            stringRedisTemplate.hasKey("ping");
+        } catch (RuntimeException e) {
+            stringRedisTemplate = null;
+        }
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        connectionFactory.destroy();
+    }
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("没有可用的redis，跳过", stringRedisTemplate != null);
+        voucherId = ThreadLocalRandom.current().nextLong(1_000_000_000L, 2_000_000_000L);
+        expireAt = System.currentTimeMillis() + 3600000;
+        seckillBuyerBitmap = new SeckillBuyerBitmap();
+        ReflectionTestUtils.setField(seckillBuyerBitmap, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @After
+    public void tearDown() {
+        if (stringRedisTemplate != null) {
+            stringRedisTemplate.delete(Arrays.asList(SeckillBuyerBitmap.chunkKey(voucherId, 0),
+                    SeckillBuyerBitmap.chunkKey(voucherId, 1)));
+        }
+    }
+
+    private boolean bought(long userId) {
+        return stringRedisTemplate.opsForValue().getBit(
+                SeckillBuyerBitmap.chunkKey(voucherId, userId >> SeckillBuyerBitmap.CHUNK_BITS),
+                userId & ((1L << SeckillBuyerBitmap.CHUNK_BITS) - 1));
+    }
+
+    /**
+     * 合并进已有的位图，不覆盖已经写入的bit，按用户id写到对应的分片，设置过期时间，不留下临时key
+     */
+    @Test
+    public void mergesIntoExistingChunks() {
+        String chunk0 = SeckillBuyerBitmap.chunkKey(voucherId, 0);
+        stringRedisTemplate.opsForValue().setBit(chunk0, 3, true);
+        long bigUserId = (1L << SeckillBuyerBitmap.CHUNK_BITS) + 9;
+
+        seckillBuyerBitmap.addAll(voucherId, Arrays.asList(5L, 17L, bigUserId), expireAt);
+
+        assertTrue(bought(3));
+        assertTrue(bought(5));
+        assertTrue(bought(17));
+        assertTrue(bought(bigUserId));
+        assertFalse(bought(6));
+        assertTrue(stringRedisTemplate.getExpire(chunk0) > 0);
+        assertTrue(stringRedisTemplate.getExpire(SeckillBuyerBitmap.chunkKey(voucherId, 1)) > 0);
+        assertFalse(stringRedisTemplate.hasKey(chunk0 + ":tmp"));
+    }
+
+    /**
+     * 多个线程并发写同一个分片，每个线程写入的用户都在
+     */
+    @Test
+    public void concurrentBatchesKeepAllBits() throws Exception {
+        int threads = 8;
+        int batches = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < batches; i++) {
+                        seckillBuyerBitmap.addAll(voucherId, Collections.singletonList(i * threads + thread), expireAt);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.bitCount(SeckillBuyerBitmap.chunkKey(voucherId, 0).getBytes()));
+        assertEquals(threads * batches, count.longValue());
+    }
+}
@@ -0,0 +1,244 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.User;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import io.lettuce.core.RedisURI;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * SeckillPreloader的测试：启动时的预热和升级前key的迁移不能覆盖redis中已经扣减过的库存
+ * 数据库的查询都是mock，redis用 -Dhmdp.test.redis 指定的真实redis（默认 redis://127.0.0.1:6379），连不上就跳过
+ */
+public class SeckillPreloaderTest {
+
+    // 数据库中的库存
+    private static final int DB_STOCK = 10;
+
+    private static LettuceConnectionFactory connectionFactory;
+
+    private static StringRedisTemplate stringRedisTemplate;
+
+    private Long voucherId;
+
+    private SeckillVoucher seckillVoucher;
+
+    private IVoucherService voucherService;
+
+    private VoucherOrderConsumerPool voucherOrderConsumerPool;
+
+    private SeckillPreloader preloader;
+
+    @BeforeClass
+    public static void connect() {
+        RedisURI uri = RedisURI.create(System.getProperty("hmdp.test.redis", "redis://127.0.0.1:6379"));
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(uri.getHost(), uri.getPort()));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        try {
+            stringRedisTemplate.hasKey("ping");
+        } catch (RuntimeException e) {
+            stringRedisTemplate = null;
+        }
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        connectionFactory.destroy();
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        Assume.assumeTrue("没有可用的redis，跳过", stringRedisTemplate != null);
+        voucherId = ThreadLocalRandom.current().nextLong(1_000_000_000L, 2_000_000_000L);
+        seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(voucherId);
+        seckillVoucher.setStock(DB_STOCK);
+        seckillVoucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        seckillVoucher.setEndTime(LocalDateTime.now().plusHours(1));
+        Voucher voucher = new Voucher();
+        voucher.setId(voucherId);
+        voucher.setStatus(1);
+
+        // 每次查询都返回新的列表，预热会从列表中删掉不需要重建的券
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        QueryChainWrapper<SeckillVoucher> seckillQuery = mock(QueryChainWrapper.class, RETURNS_SELF);
+        when(seckillQuery.list()).thenAnswer(invocation -> new ArrayList<>(Collections.singletonList(seckillVoucher)));
+        when(seckillVoucherService.query()).thenReturn(seckillQuery);
+
+        voucherService = mock(IVoucherService.class);
+        when(voucherService.listByIds(anyCollection())).thenReturn(Collections.singletonList(voucher));
+
+        // 数据库中还没有订单
+        IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+        QueryChainWrapper<VoucherOrder> orderQuery = mock(QueryChainWrapper.class, RETURNS_SELF);
+        when(orderQuery.list()).thenReturn(Collections.emptyList());
+        when(voucherOrderService.query()).thenReturn(orderQuery);
+
+        // 用户id都在位图的第一个分片内
+        IUserService userService = mock(IUserService.class);
+        QueryChainWrapper<User> userQuery = mock(QueryChainWrapper.class, RETURNS_SELF);
+        User maxUser = new User();
+        maxUser.setId(1000L);
+        doReturn(maxUser).when(userQuery).one();
+        when(userService.query()).thenReturn(userQuery);
+        SeckillBuyerBitmap seckillBuyerBitmap = new SeckillBuyerBitmap();
+        ReflectionTestUtils.setField(seckillBuyerBitmap, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillBuyerBitmap, "userService", userService);
+
+        voucherOrderConsumerPool = mock(VoucherOrderConsumerPool.class);
+
+        preloader = new SeckillPreloader();
+        ReflectionTestUtils.setField(preloader, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(preloader, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(preloader, "voucherService", voucherService);
+        ReflectionTestUtils.setField(preloader, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(preloader, "seckillBuyerBitmap", seckillBuyerBitmap);
+        ReflectionTestUtils.setField(preloader, "voucherOrderConsumerPool", voucherOrderConsumerPool);
+        ReflectionTestUtils.setField(preloader, "buyersRetainMs", 3600000L);
+    }
+
+    @After
+    public void tearDown() {
+        if (stringRedisTemplate != null) {
+            stringRedisTemplate.delete(Arrays.asList(
+                    SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                    SeckillKeys.stock(voucherId), SeckillKeys.meta(voucherId),
+                    SeckillKeys.lease(voucherId), SeckillKeys.buyers(voucherId, 0)));
+        }
+    }
+
+    private String stock() {
+        return stringRedisTemplate.opsForValue().get(SeckillKeys.stock(voucherId));
+    }
+
+    /**
+     * 从没有元数据的旧版本升级：迁移过来的库存保留，只补元数据
+     */
+    @Test
+    public void upgradeKeepsMigratedStock() {
+        // 旧版本已经卖出了7件，订单还在stream.orders中没处理完
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, "3");
+        when(voucherOrderConsumerPool.hasUnconsumedMessages(SECKILL_ORDER_STREAM)).thenReturn(true);
+
+        preloader.preloadOnStartup();
+
+        assertEquals("3", stock());
+        assertFalse(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId));
+        verify(voucherService).saveSeckillMeta2Redis(seckillVoucher, 1);
+        verify(voucherService, never()).saveSeckillVoucher2Redis(any(), any());
+    }
+
+    /**
+     * 升级前秒杀脚本记录在set中的已下单用户写入位图，旧的set删除
+     */
+    @Test
+    public void upgradeMigratesLegacyBuyerSet() {
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, "8");
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + voucherId, "5", "17");
+
+        preloader.preloadOnStartup();
+
+        String buyersKey = SeckillKeys.buyers(voucherId, 0);
+        assertTrue(stringRedisTemplate.opsForValue().getBit(buyersKey, 5));
+        assertTrue(stringRedisTemplate.opsForValue().getBit(buyersKey, 17));
+        assertFalse(stringRedisTemplate.opsForValue().getBit(buyersKey, 6));
+        assertTrue(stringRedisTemplate.getExpire(buyersKey) > 0);
+        assertFalse(stringRedisTemplate.hasKey(SECKILL_ORDER_KEY + voucherId));
+        assertEquals("8", stock());
+    }
+
+    /**
+     * redis中没有库存，但升级前的stream.orders中还有没处理完的订单，数据库的库存偏多，先不重建
+     */
+    @Test
+    public void skipsMissingStockWhileLegacyOrdersAreUnsettled() {
+        when(voucherOrderConsumerPool.hasUnconsumedMessages(anyString())).thenReturn(false);
+        when(voucherOrderConsumerPool.hasUnconsumedMessages(SECKILL_ORDER_STREAM)).thenReturn(true);
+
+        Map<String, Object> report = preloader.preload(false);
+
+        assertEquals(Collections.singletonList(voucherId), report.get("skipped"));
+        verify(voucherService, never()).saveSeckillMeta2Redis(any(), any());
+        verify(voucherService, never()).saveSeckillVoucher2Redis(any(), any());
+    }
+
+    /**
+     * redis中没有库存，订单都处理完了，用数据库的库存重建
+     */
+    @Test
+    public void rebuildsMissingStockFromDatabase() {
+        Map<String, Object> report = preloader.preload(false);
+
+        assertEquals(1, report.get("vouchers"));
+        verify(voucherService).saveSeckillVoucher2Redis(seckillVoucher, 1);
+    }
+
+    /**
+     * 强制重建时有没处理完的订单也跳过，库存保持不变
+     */
+    @Test
+    public void forcedPreloadSkipsUnsettledStock() {
+        stringRedisTemplate.opsForValue().set(SeckillKeys.stock(voucherId), "3");
+        when(voucherOrderConsumerPool.hasUnconsumedMessages(SeckillKeys.orderStream(voucherId))).thenReturn(true);
+
+        Map<String, Object> report = preloader.preload(true);
+
+        assertEquals(Collections.singletonList(voucherId), report.get("skipped"));
+        assertEquals("3", stock());
+        verify(voucherService, never()).saveSeckillVoucher2Redis(any(), any());
+    }
+
+    /**
+     * 调度器预热单张券时也不覆盖已有的库存
+     */
+    @Test
+    public void preloadVoucherKeepsExistingStock() {
+        stringRedisTemplate.opsForValue().set(SeckillKeys.stock(voucherId), "3");
+
+        preloader.preloadVoucher(seckillVoucher, 1);
+
+        assertEquals("3", stock());
+        verify(voucherService).saveSeckillMeta2Redis(seckillVoucher, 1);
+        verify(voucherService, never()).saveSeckillVoucher2Redis(any(), any());
+    }
+}
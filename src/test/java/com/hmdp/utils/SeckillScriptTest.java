@@ -0,0 +1,408 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 秒杀相关lua脚本的测试，脚本逻辑只能在真实的redis上执行
+ * 连接 -Dhmdp.test.redis 指定的redis（默认 redis://127.0.0.1:6379），连不上就跳过
+ * 每个测试用一个随机的券id，结束后删除这张券的所有key
+ */
+public class SeckillScriptTest {
+
+    // 秒杀结束后已下单用户的位图保留的时间
+    private static final long BUYERS_RETAIN_MS = 3600000;
+
+    private static RedisClient client;
+
+    private static StatefulRedisConnection<String, String> connection;
+
+    private static RedisCommands<String, String> redis;
+
+    private Long voucherId;
+
+    private long now;
+
+    @BeforeClass
+    public static void connect() {
+        client = RedisClient.create(System.getProperty("hmdp.test.redis", "redis://127.0.0.1:6379"));
+        try {
+            connection = client.connect();
+            redis = connection.sync();
+            redis.ping();
+        } catch (RedisException e) {
+            redis = null;
+        }
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        if (connection != null) {
+            connection.close();
+        }
+        client.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("没有可用的redis，跳过", redis != null);
+        voucherId = ThreadLocalRandom.current().nextLong(1_000_000_000L, 2_000_000_000L);
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        if (redis != null) {
+            redis.del(SeckillKeys.meta(voucherId), SeckillKeys.stock(voucherId), SeckillKeys.soldOut(voucherId),
+                    SeckillKeys.orderStream(voucherId), SeckillKeys.lease(voucherId), SeckillKeys.leaseHeartbeat(voucherId),
+                    SeckillBuyerBitmap.chunkKey(voucherId, 0), SeckillBuyerBitmap.chunkKey(voucherId, 1),
+                    SeckillKeys.admission(voucherId, 1));
+        }
+    }
+
+    private static String script(String name) {
+        try (InputStream in = new ClassPathResource(name).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 写入券的元数据和库存，和SeckillPreloader一致
+    private void voucher(long begin, long end, String status, long stock) {
+        redis.hset(SeckillKeys.meta(voucherId), "begin", String.valueOf(begin));
+        redis.hset(SeckillKeys.meta(voucherId), "end", String.valueOf(end));
+        redis.hset(SeckillKeys.meta(voucherId), "status", status);
+        redis.hset(SeckillKeys.meta(voucherId), "stock", String.valueOf(stock));
+        redis.set(SeckillKeys.stock(voucherId), String.valueOf(stock));
+    }
+
+    // 正在秒杀的券
+    private void voucher(long stock) {
+        voucher(now - 1000, now + 3600000, "1", stock);
+    }
+
+    /**
+     * 一批秒杀请求，参数和SeckillCoalescer一致，订单id是用户id * 10
+     * @param instance 开启库存租约时的实例id，没开启时是空字符串
+     */
+    private List<Long> seckill(String instance, long... userIds) {
+        List<String> keys = new ArrayList<>(Arrays.asList(SeckillKeys.meta(voucherId), SeckillKeys.stock(voucherId),
+                SeckillKeys.soldOut(voucherId), SeckillKeys.orderStream(voucherId), SeckillKeys.lease(voucherId)));
+        List<String> args = new ArrayList<>(Arrays.asList(voucherId.toString(), String.valueOf(now),
+                String.valueOf(BUYERS_RETAIN_MS), instance));
+        for (long userId : userIds) {
+            keys.add(SeckillBuyerBitmap.chunkKey(voucherId, userId >> SeckillBuyerBitmap.CHUNK_BITS));
+            args.add(String.valueOf(userId));
+            args.add(String.valueOf(userId * 10));
+        }
+        return redis.eval(script("seckill.lua"), ScriptOutputType.MULTI,
+                keys.toArray(new String[0]), args.toArray(new String[0]));
+    }
+
+    private long stock() {
+        return Long.parseLong(redis.get(SeckillKeys.stock(voucherId)));
+    }
+
+    private boolean soldOut() {
+        return redis.exists(SeckillKeys.soldOut(voucherId)) == 1;
+    }
+
+    /**
+     * 按顺序卖到库存为0，后面的请求库存不足，并写入售罄标记
+     */
+    @Test
+    public void sellsUntilStockRunsOut() {
+        voucher(2);
+
+        assertEquals(Arrays.asList(0L, 0L, 1L), seckill("", 1, 2, 3));
+
+        assertEquals(0, stock());
+        assertTrue(soldOut());
+        List<StreamMessage<String, String>> messages = redis.xrange(SeckillKeys.orderStream(voucherId), Range.unbounded());
+        assertEquals(2, messages.size());
+        assertEquals("1", messages.get(0).getBody().get("userId"));
+        assertEquals("10", messages.get(0).getBody().get("id"));
+        assertEquals(voucherId.toString(), messages.get(0).getBody().get("voucherId"));
+        assertEquals("2", messages.get(1).getBody().get("userId"));
+    }
+
+    /**
+     * 同一个用户在同一批和之后的批次中重复下单都被拦下，不扣库存
+     * 位图按用户id分片，不同分片的用户互不影响
+     */
+    @Test
+    public void rejectsDuplicateBuyers() {
+        voucher(10);
+        long otherChunk = (1L << SeckillBuyerBitmap.CHUNK_BITS) + 1;
+
+        assertEquals(Arrays.asList(0L, 2L, 0L), seckill("", 1, 1, otherChunk));
+        assertEquals(Arrays.asList(2L, 2L), seckill("", otherChunk, 1));
+
+        assertEquals(8, stock());
+        assertEquals(1L, (long) redis.getbit(SeckillBuyerBitmap.chunkKey(voucherId, 0), 1));
+        assertEquals(1L, (long) redis.getbit(SeckillBuyerBitmap.chunkKey(voucherId, 1), 1));
+        // 位图在秒杀结束之后保留一段时间
+        long expireAt = redis.pttl(SeckillBuyerBitmap.chunkKey(voucherId, 0)) + System.currentTimeMillis();
+        assertEquals(now + 3600000 + BUYERS_RETAIN_MS, expireAt, 5000);
+    }
+
+    /**
+     * 券不存在、没开始、已结束、已下架时整批返回同一个结果，不扣库存
+     */
+    @Test
+    public void checksVoucherMetadata() {
+        assertEquals(Arrays.asList(3L, 3L), seckill("", 1, 2));
+
+        voucher(now + 60000, now + 3600000, "1", 10);
+        assertEquals(Arrays.asList(4L, 4L), seckill("", 1, 2));
+
+        voucher(now - 3600000, now - 1000, "1", 10);
+        assertEquals(Arrays.asList(5L, 5L), seckill("", 1, 2));
+
+        voucher(now - 1000, now + 3600000, "0", 10);
+        assertEquals(Arrays.asList(5L, 5L), seckill("", 1, 2));
+
+        assertEquals(10, stock());
+        assertEquals(0L, (long) redis.exists(SeckillKeys.orderStream(voucherId)));
+    }
+
+    /**
+     * 有售罄标记时直接返回库存不足，不再检查库存
+     */
+    @Test
+    public void soldOutFlagShortCircuits() {
+        voucher(10);
+        redis.set(SeckillKeys.soldOut(voucherId), "1");
+
+        assertEquals(Arrays.asList(1L, 1L), seckill("", 1, 2));
+        assertEquals(10, stock());
+    }
+
+    // 实例租用库存，参数和SeckillStockLease一致，心跳超过10秒没有更新的实例认为已经宕机
+    private List<Long> lease(String instance, long chunk) {
+        return redis.eval(script("stock_lease.lua"), ScriptOutputType.MULTI,
+                new String[]{SeckillKeys.stock(voucherId), SeckillKeys.lease(voucherId), SeckillKeys.meta(voucherId),
+                        SeckillKeys.soldOut(voucherId), SeckillKeys.leaseHeartbeat(voucherId)},
+                instance, String.valueOf(chunk), String.valueOf(now), "10000");
+    }
+
+    // 实例归还库存，-1表示全部归还并删除租约
+    private long returnStock(String instance, long amount) {
+        Long returned = redis.eval(script("stock_return.lua"), ScriptOutputType.INTEGER,
+                new String[]{SeckillKeys.lease(voucherId), SeckillKeys.stock(voucherId), SeckillKeys.leaseHeartbeat(voucherId)},
+                instance, String.valueOf(amount));
+        return returned;
+    }
+
+    private long leased(String instance) {
+        String held = redis.hget(SeckillKeys.lease(voucherId), instance);
+        return held == null ? 0 : Long.parseLong(held);
+    }
+
+    /**
+     * 从中央库存租走一块，最多租到剩余的数量，并记下心跳
+     */
+    @Test
+    public void leaseTakesChunkFromStock() {
+        voucher(10);
+        long end = now + 3600000;
+
+        assertEquals(Arrays.asList(4L, end), lease("i1", 4));
+        assertEquals(Arrays.asList(4L, end), lease("i2", 4));
+        assertEquals(Arrays.asList(2L, end), lease("i1", 4));
+
+        assertEquals(0, stock());
+        assertEquals(6, leased("i1"));
+        assertEquals(4, leased("i2"));
+        assertEquals(String.valueOf(now), redis.hget(SeckillKeys.leaseHeartbeat(voucherId), "i1"));
+    }
+
+    /**
+     * 租约模式下秒杀脚本扣减实例租约中的数量，不动中央库存；租约用完或者被收回时返回6
+     */
+    @Test
+    public void leasedSeckillConsumesLease() {
+        voucher(10);
+        lease("i1", 2);
+
+        assertEquals(Arrays.asList(0L, 0L, 6L), seckill("i1", 1, 2, 3));
+
+        assertEquals(0, leased("i1"));
+        assertEquals(8, stock());
+        assertEquals(2L, (long) redis.xlen(SeckillKeys.orderStream(voucherId)));
+        // 没有租约的实例不能卖
+        assertEquals(Arrays.asList(6L), seckill("i2", 4));
+    }
+
+    /**
+     * 中央库存没有了，收回心跳过期的实例手里的库存再租给自己；被收回的实例不能再卖
+     */
+    @Test
+    public void leaseReclaimsFromDeadInstance() {
+        voucher(3);
+        lease("dead", 3);
+        redis.hset(SeckillKeys.leaseHeartbeat(voucherId), "dead", String.valueOf(now - 60000));
+
+        assertEquals(Arrays.asList(3L, now + 3600000), lease("i1", 4));
+
+        assertEquals(3, leased("i1"));
+        assertFalse(redis.hexists(SeckillKeys.lease(voucherId), "dead"));
+        assertFalse(redis.hexists(SeckillKeys.leaseHeartbeat(voucherId), "dead"));
+        assertEquals(Arrays.asList(6L), seckill("dead", 1));
+        // 被收回的实例归还库存时什么也不还，不会重复归还
+        assertEquals(0, returnStock("dead", -1));
+        assertEquals(0, stock());
+    }
+
+    /**
+     * 心跳正常的实例手里的库存不收回，也不算卖完
+     */
+    @Test
+    public void leaseKeepsLiveInstanceStock() {
+        voucher(3);
+        lease("i2", 3);
+
+        assertEquals(Arrays.asList(0L, now + 3600000), lease("i1", 4));
+
+        assertEquals(3, leased("i2"));
+        assertFalse(soldOut());
+    }
+
+    /**
+     * 中央库存和所有实例手里都没有了，写入售罄标记
+     */
+    @Test
+    public void leaseMarksSoldOutWhenNothingOutstanding() {
+        voucher(1);
+        lease("i1", 1);
+        assertEquals(Arrays.asList(0L), seckill("i1", 1));
+
+        assertEquals(Arrays.asList(-1L, now + 3600000), lease("i1", 1));
+        assertTrue(soldOut());
+        assertEquals(Arrays.asList(1L), seckill("i1", 2));
+    }
+
+    /**
+     * 归还的数量不超过租约中记录的数量，-1全部归还并删除租约
+     */
+    @Test
+    public void returnIsCappedByLease() {
+        voucher(10);
+        lease("i1", 4);
+
+        assertEquals(1, returnStock("i1", 1));
+        assertEquals(3, leased("i1"));
+        assertEquals(3, returnStock("i1", 5));
+        assertEquals(0, leased("i1"));
+        assertEquals(10, stock());
+
+        lease("i1", 2);
+        assertEquals(2, returnStock("i1", -1));
+        assertFalse(redis.hexists(SeckillKeys.lease(voucherId), "i1"));
+        assertFalse(redis.hexists(SeckillKeys.leaseHeartbeat(voucherId), "i1"));
+        assertEquals(10, stock());
+    }
+
+    // 申请准入令牌，每秒预算 = 剩余库存 * 2，至少5个
+    private long admit(long chunk) {
+        Long granted = redis.eval(script("seckill_admission.lua"), ScriptOutputType.INTEGER,
+                new String[]{SeckillKeys.admission(voucherId, 1), SeckillKeys.stock(voucherId), SeckillKeys.lease(voucherId)},
+                String.valueOf(chunk), "2", "5");
+        return granted;
+    }
+
+    /**
+     * 每秒发出的令牌不超过预算，预算按剩余库存计算，租走的库存也算上
+     */
+    @Test
+    public void admissionGrantsWithinBudget() {
+        voucher(10);
+        lease("i1", 4);
+
+        // 中央库存6 + 租约4，预算20
+        assertEquals(8, admit(8));
+        assertEquals(8, admit(8));
+        assertEquals(4, admit(8));
+        assertEquals(0, admit(8));
+        assertTrue(redis.ttl(SeckillKeys.admission(voucherId, 1)) > 0);
+    }
+
+    /**
+     * 库存很少或者卖完了，每秒仍然放行最少的预算，让请求拿到库存不足的结果
+     */
+    @Test
+    public void admissionKeepsMinimumBudget() {
+        voucher(0);
+
+        assertEquals(3, admit(3));
+        assertEquals(2, admit(3));
+        assertEquals(0, admit(3));
+    }
+
+    /**
+     * 只删除pending-list为空并且空闲足够久的消费者，本实例的消费者和还有消息没确认的消费者保留
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void deletesOnlyIdleConsumersWithoutPendingMessages() throws InterruptedException {
+        String stream = SeckillKeys.orderStream(voucherId);
+        redis.xgroupCreate(XReadArgs.StreamOffset.from(stream, "0"), "g1", XGroupCreateArgs.Builder.mkstream());
+        for (int i = 1; i <= 4; i++) {
+            redis.xadd(stream, "id", String.valueOf(i));
+        }
+        // 每个消费者读到一条消息，除了busy都确认了，own是本实例的消费者
+        consume(stream, "dead", true);
+        consume(stream, "busy", false);
+        consume(stream, "own", true);
+        Thread.sleep(100);
+        // fresh刚刚还在读
+        consume(stream, "fresh", true);
+
+        Long deleted = redis.eval(script("consumer_delete.lua"), ScriptOutputType.INTEGER, new String[]{stream}, "g1", "100", "own");
+
+        assertEquals(1L, deleted.longValue());
+        List<String> names = new ArrayList<>();
+        for (Object consumer : redis.xinfoConsumers(stream, "g1")) {
+            List<Object> info = (List<Object>) consumer;
+            names.add((String) info.get(info.indexOf("name") + 1));
+        }
+        assertEquals(Arrays.asList("busy", "fresh", "own"), names);
+    }
+
+    // 消费者组g1中的consumer读一条消息
+    private void consume(String stream, String consumer, boolean ack) {
+        List<StreamMessage<String, String>> read = redis.xreadgroup(io.lettuce.core.Consumer.from("g1", consumer),
+                XReadArgs.Builder.count(1), XReadArgs.StreamOffset.lastConsumed(stream));
+        if (ack) {
+            redis.xack(stream, "g1", read.get(0).getId());
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Constructor;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 秒杀订单消费者处理pending-list的单元测试：按投递次数退避重试，超过重试次数转入死信队列
+ * 默认配置：最多投递5次，初始退避100ms，每失败一次翻倍，最多30秒
+ */
+@SuppressWarnings("unchecked")
+public class VoucherOrderConsumerPoolTest {
+
+    private static final String STREAM = SeckillKeys.orderStream(7L);
+    private static final String CONSUMER = "hmdp-test-0";
+    private static final String MESSAGE_ID = "1700000000000-0";
+    // 消息失败原因的key
+    private static final String ERROR_KEY = STREAM + "|" + MESSAGE_ID;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private StreamOperations<String, Object, Object> streamOps;
+
+    private IVoucherOrderService voucherOrderService;
+
+    private SeckillOrderStatusNotifier orderStatusNotifier;
+
+    private VoucherOrderConsumerPool pool;
+
+    // 消费线程，直接调用它处理pending-list的方法
+    private Object handler;
+
+    @Before
+    public void setUp() throws Exception {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        streamOps = mock(StreamOperations.class);
+        doReturn(streamOps).when(stringRedisTemplate).opsForStream();
+        voucherOrderService = mock(IVoucherOrderService.class);
+        orderStatusNotifier = mock(SeckillOrderStatusNotifier.class);
+
+        pool = new VoucherOrderConsumerPool();
+        ReflectionTestUtils.setField(pool, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(pool, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(pool, "orderStatusNotifier", orderStatusNotifier);
+        ReflectionTestUtils.setField(pool, "maxDeliveries", 5);
+        ReflectionTestUtils.setField(pool, "retryBackoffMs", 100L);
+        ReflectionTestUtils.setField(pool, "retryBackoffMaxMs", 30000L);
+        ReflectionTestUtils.setField(pool, "reclaimMinIdleMs", 60000L);
+        ReflectionTestUtils.setField(pool, "partitions", Collections.singletonList(STREAM));
+
+        Class<?> handlerClass = Class.forName(VoucherOrderConsumerPool.class.getName() + "$VoucherOrderHandler");
+        Constructor<?> constructor = handlerClass.getDeclaredConstructor(VoucherOrderConsumerPool.class, String.class);
+        constructor.setAccessible(true);
+        handler = constructor.newInstance(pool, CONSUMER);
+        ((List<Object>) ReflectionTestUtils.getField(pool, "handlers")).add(handler);
+    }
+
+    // pending-list中只有一条消息，已经投递了deliveries次，距离上一次投递过了elapsedMs
+    private void pending(long deliveries, long elapsedMs) {
+        PendingMessage pendingMessage = new PendingMessage(RecordId.of(MESSAGE_ID), Consumer.from(SECKILL_ORDER_GROUP, CONSUMER),
+                Duration.ofMillis(elapsedMs), deliveries);
+        when(streamOps.pending(eq(STREAM), any(Consumer.class), any(Range.class), anyLong()))
+                .thenReturn(new PendingMessages(SECKILL_ORDER_GROUP, Collections.singletonList(pendingMessage)));
+    }
+
+    private static List<MapRecord<String, Object, Object>> record() {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("id", "11");
+        value.put("userId", "22");
+        value.put("voucherId", "7");
+        return Collections.singletonList(MapRecord.create(STREAM, value).withId(RecordId.of(MESSAGE_ID)));
+    }
+
+    // XCLAIM返回的消息
+    private void claimed(List<MapRecord<String, Object, Object>> records) {
+        doReturn(records).when(stringRedisTemplate).execute(any(RedisCallback.class));
+    }
+
+    private void verifyNeverClaimed() {
+        verify(stringRedisTemplate, never()).execute(any(RedisCallback.class));
+    }
+
+    private long handlePendingList() {
+        Long next = ReflectionTestUtils.invokeMethod(handler, "handlePendingList");
+        return next;
+    }
+
+    private Map<String, String> lastErrors() {
+        return (Map<String, String>) ReflectionTestUtils.getField(pool, "lastErrors");
+    }
+
+    /**
+     * 第n次失败之后等待 100ms * 2^(n-1)，最多30秒
+     */
+    @Test
+    public void backoffDoublesUpToMax() {
+        assertEquals(100L, (long) ReflectionTestUtils.invokeMethod(pool, "backoff", 1L));
+        assertEquals(200L, (long) ReflectionTestUtils.invokeMethod(pool, "backoff", 2L));
+        assertEquals(400L, (long) ReflectionTestUtils.invokeMethod(pool, "backoff", 3L));
+        assertEquals(30000L, (long) ReflectionTestUtils.invokeMethod(pool, "backoff", 20L));
+        assertEquals(30000L, (long) ReflectionTestUtils.invokeMethod(pool, "backoff", 1000L));
+    }
+
+    /**
+     * 到了重试时间的消息重新认领、创建订单并确认，按创建订单返回的id回写状态，不再查询数据库
+     */
+    @Test
+    public void retriesDueMessage() {
+        pending(1, 1000);
+        claimed(record());
+        when(voucherOrderService.createVoucherOrder(any())).thenReturn(Collections.singleton(11L));
+
+        assertEquals(Long.MAX_VALUE, handlePendingList());
+
+        ArgumentCaptor<VoucherOrder> order = ArgumentCaptor.forClass(VoucherOrder.class);
+        verify(voucherOrderService).createVoucherOrder(order.capture());
+        assertEquals(Long.valueOf(11), order.getValue().getId());
+        assertEquals(Long.valueOf(22), order.getValue().getUserId());
+        verify(orderStatusNotifier).complete(Collections.singletonMap(11L, SeckillOrderStatusNotifier.PERSISTED),
+                Collections.singletonMap(11L, 22L));
+        verify(voucherOrderService, never()).query();
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of(MESSAGE_ID));
+    }
+
+    /**
+     * 被唯一索引或者库存拦下来的订单没有返回id，回写下单失败
+     */
+    @Test
+    public void rejectedOrderIsReportedFailed() {
+        pending(1, 1000);
+        claimed(record());
+        when(voucherOrderService.createVoucherOrder(any())).thenReturn(Collections.emptySet());
+
+        handlePendingList();
+
+        verify(orderStatusNotifier).complete(Collections.singletonMap(11L, SeckillOrderStatusNotifier.FAILED),
+                Collections.singletonMap(11L, 22L));
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of(MESSAGE_ID));
+    }
+
+    /**
+     * 批量模式每张券一个事务：一张券库存不够整批扣减，只有这张券的消息留在pending-list中，其他券照常确认
+     */
+    @Test
+    public void batchFailureOnlyKeepsThatVoucherPending() {
+        String stream8 = SeckillKeys.orderStream(8L);
+        ReflectionTestUtils.setField(pool, "partitions", Arrays.asList(STREAM, stream8));
+        ReflectionTestUtils.setField(pool, "batchSize", 10);
+        Map<Object, Object> order8 = new HashMap<>();
+        order8.put("id", "12");
+        order8.put("userId", "23");
+        order8.put("voucherId", "8");
+        when(streamOps.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+                .thenReturn(record())
+                .thenReturn(Collections.singletonList(MapRecord.create(stream8, order8).withId(RecordId.of("1700000000000-1"))))
+                .thenReturn(Collections.emptyList());
+        when(voucherOrderService.createVoucherOrderBatch(anyList())).thenAnswer(invocation -> {
+            List<VoucherOrder> orders = invocation.getArgument(0);
+            if (orders.get(0).getVoucherId() == 8L) {
+                throw new IllegalStateException("优惠券库存不足，批量扣减失败，voucherId = 8");
+            }
+            return Collections.singleton(11L);
+        });
+
+        long before = System.currentTimeMillis();
+        ReflectionTestUtils.invokeMethod(handler, "handleBatch");
+
+        verify(voucherOrderService, times(2)).createVoucherOrderBatch(anyList());
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of(MESSAGE_ID));
+        verify(streamOps, never()).acknowledge(eq(stream8), eq(SECKILL_ORDER_GROUP), any(RecordId.class));
+        verify(orderStatusNotifier).complete(Collections.singletonMap(11L, SeckillOrderStatusNotifier.PERSISTED),
+                Collections.singletonMap(11L, 22L));
+        assertTrue((long) ReflectionTestUtils.getField(handler, "nextPendingCheck") >= before + 100);
+    }
+
+    /**
+     * 还没到重试时间的消息不处理，返回到期的时间
+     */
+    @Test
+    public void waitsForBackoffBeforeRetrying() {
+        // 投递了2次，要等200ms，已经过了50ms
+        pending(2, 50);
+
+        long before = System.currentTimeMillis();
+        long next = handlePendingList();
+
+        assertTrue(next >= before + 150 && next <= System.currentTimeMillis() + 150);
+        verifyNeverClaimed();
+        verify(voucherOrderService, never()).createVoucherOrder(any());
+    }
+
+    /**
+     * 重试失败的消息留在pending-list中不确认，记下错误原因，按下一次的退避时间再试
+     */
+    @Test
+    public void failedRetryStaysPending() {
+        pending(2, 1000);
+        claimed(record());
+        doThrow(new IllegalStateException("数据库不可用")).when(voucherOrderService).createVoucherOrder(any());
+
+        long before = System.currentTimeMillis();
+        long next = handlePendingList();
+
+        // 第3次投递失败，退避400ms
+        assertTrue(next >= before + 400 && next <= System.currentTimeMillis() + 400);
+        assertTrue(lastErrors().get(ERROR_KEY).contains("数据库不可用"));
+        verify(streamOps, never()).acknowledge(eq(STREAM), eq(SECKILL_ORDER_GROUP), any(RecordId.class));
+    }
+
+    /**
+     * 超过重试次数的消息连同最后一次的错误写入死信队列，通知客户端下单失败，再确认原消息
+     */
+    @Test
+    public void exhaustedMessageMovesToDeadLetter() {
+        pending(5, 1000);
+        lastErrors().put(ERROR_KEY, "java.lang.IllegalStateException: 数据库不可用");
+        when(streamOps.range(eq(STREAM), any(Range.class))).thenReturn(record());
+
+        assertEquals(Long.MAX_VALUE, handlePendingList());
+
+        ArgumentCaptor<Map> deadLetter = ArgumentCaptor.forClass(Map.class);
+        verify(streamOps).add(eq(SECKILL_ORDER_DLQ_STREAM), deadLetter.capture());
+        Map<String, String> value = deadLetter.getValue();
+        assertEquals("11", value.get("id"));
+        assertEquals("22", value.get("userId"));
+        assertEquals(MESSAGE_ID, value.get("originalId"));
+        assertEquals(STREAM, value.get("stream"));
+        assertEquals("5", value.get("deliveries"));
+        assertEquals(CONSUMER, value.get("consumer"));
+        assertEquals("java.lang.IllegalStateException: 数据库不可用", value.get("error"));
+        assertFalse(lastErrors().containsKey(ERROR_KEY));
+
+        verify(orderStatusNotifier).complete(Collections.singletonMap(11L, SeckillOrderStatusNotifier.FAILED),
+                Collections.singletonMap(11L, 22L));
+
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of(MESSAGE_ID));
+        verifyNeverClaimed();
+        verify(voucherOrderService, never()).createVoucherOrder(any());
+    }
+
+    /**
+     * 已经从stream中删掉的消息直接确认，不再重试
+     */
+    @Test
+    public void missingMessageIsAcknowledged() {
+        pending(1, 1000);
+        claimed(Collections.emptyList());
+
+        handlePendingList();
+
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of(MESSAGE_ID));
+        verify(voucherOrderService, never()).createVoucherOrder(any());
+        verify(orderStatusNotifier, never()).complete(anyMap(), anyMap());
+    }
+
+    /**
+     * 认领的时候清理失败原因：消息已经被别的实例认领走的、已经确认的、分区已经没有的都删掉，还在自己pending-list中的保留
+     */
+    @Test
+    public void reclaimCleansStaleLastErrors() {
+        String ownId = "1700000000001-0";
+        String ackedId = "1700000000002-0";
+        lastErrors().put(ERROR_KEY, "taken");
+        lastErrors().put(STREAM + "|" + ownId, "own");
+        lastErrors().put(STREAM + "|" + ackedId, "acked");
+        lastErrors().put(SeckillKeys.orderStream(8L) + "|" + MESSAGE_ID, "removed");
+        when(streamOps.pending(eq(STREAM), eq(SECKILL_ORDER_GROUP), any(Range.class), anyLong())).thenAnswer(invocation -> {
+            Range<String> range = invocation.getArgument(2);
+            String id = range.getLowerBound().getValue().orElse(null);
+            if (MESSAGE_ID.equals(id)) {
+                return pendingMessages(id, "hmdp-other-0");
+            }
+            if (ownId.equals(id)) {
+                return pendingMessages(id, CONSUMER);
+            }
+            // 没有消息需要认领，已经确认的消息也不在pending-list中了
+            return new PendingMessages(SECKILL_ORDER_GROUP, Collections.emptyList());
+        });
+
+        ReflectionTestUtils.invokeMethod(pool, "reclaimIdleMessages");
+
+        assertEquals(Collections.singletonMap(STREAM + "|" + ownId, "own"), lastErrors());
+    }
+
+    /**
+     * 认领的时候删除挂掉的消费者，本实例的消费者不删除
+     */
+    @Test
+    public void reclaimDeletesDeadConsumers() {
+        when(streamOps.pending(eq(STREAM), eq(SECKILL_ORDER_GROUP), any(Range.class), anyLong()))
+                .thenReturn(new PendingMessages(SECKILL_ORDER_GROUP, Collections.emptyList()));
+
+        ReflectionTestUtils.invokeMethod(pool, "reclaimIdleMessages");
+
+        verify(stringRedisTemplate).execute(eq(VoucherOrderConsumerPool.CONSUMER_DELETE_SCRIPT), eq(Collections.singletonList(STREAM)),
+                eq(SECKILL_ORDER_GROUP), eq("60000"), eq(CONSUMER));
+    }
+
+    private static PendingMessages pendingMessages(String id, String consumer) {
+        PendingMessage pendingMessage = new PendingMessage(RecordId.of(id), Consumer.from(SECKILL_ORDER_GROUP, consumer),
+                Duration.ofMillis(1000), 1);
+        return new PendingMessages(SECKILL_ORDER_GROUP, Collections.singletonList(pendingMessage));
+    }
+}